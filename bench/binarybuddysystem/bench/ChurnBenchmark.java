@@ -0,0 +1,128 @@
+package binarybuddysystem.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import binarybuddysystem.Handle;
+import binarybuddysystem.MMU;
+
+/**
+ * Steady state: the MMU is kept about half full while blocks are freed and
+ * allocated in random order, the way a long running program uses it. Every
+ * churn operation frees one block and allocates another, so the MMU stays
+ * at the same level for the whole run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChurnBenchmark
+{
+	@Param({"1048576", "67108864", "1073741824"})
+	public int memSize;
+
+	@Param({"64", "4096"})
+	public int chunkSize;
+
+	@Param({"uniform", "small", "powers", "bimodal"})
+	public String distribution;
+
+	private MMU mmu;
+	private Workload workload;
+	private String[] names;		//Names of the named Processes, in use or not
+	private long[] handles;		//Blocks allocated by handle, Handle.NONE if the slot is empty
+	private int next;			//Position in the workload
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		mmu = new MMU(memSize, chunkSize);
+		workload = new Workload(distribution, memSize, chunkSize);
+		next = 0;
+
+		//Half the memory as named Processes, then a quarter as blocks by handle
+		int count = 0;
+		for(int i = 0; mmu.getReservedBytes() < memSize / 2 && i < Workload.LENGTH; i++)
+		{
+			if(mmu.allocate("P" + count, workload.sizes[i]) != null)
+				count++;
+		}
+		names = new String[count];
+		for(int i = 0; i < count; i++)
+			names[i] = "P" + i;
+
+		handles = new long[16];
+		count = 0;
+		for(int i = 0; mmu.getReservedBytes() < memSize / 4 * 3 && i < Workload.LENGTH; i++)
+		{
+			long handle = mmu.allocate(workload.sizes[i]);
+			if(handle == Handle.NONE)
+				continue;
+			if(count == handles.length)
+				handles = Arrays.copyOf(handles, count * 2);
+			handles[count++] = handle;
+		}
+		handles = Arrays.copyOf(handles, Math.max(1, count));
+		if(count == 0)
+			handles[0] = Handle.NONE;
+	}
+
+	/**
+	 * Removes a random named Process and allocates it again with a new size
+	 */
+	@Benchmark
+	public int[] churnNamed()
+	{
+		int i = next++ & Workload.MASK;
+		String victim = names[workload.picks[i] % names.length];
+		mmu.deallocate(victim);
+		return mmu.allocate(victim, workload.sizes[i]);
+	}
+
+	/**
+	 * Frees a random block by handle and allocates a new one in its place
+	 */
+	@Benchmark
+	public long churnHandles()
+	{
+		int i = next++ & Workload.MASK;
+		int victim = workload.picks[i] % handles.length;
+		if(handles[victim] != Handle.NONE)
+			mmu.free(handles[victim]);
+		return handles[victim] = mmu.allocate(workload.sizes[i]);
+	}
+
+	/**
+	 * Looks up a random named Process
+	 */
+	@Benchmark
+	public String getProcess()
+	{
+		int i = next++ & Workload.MASK;
+		return mmu.getProcess(names[workload.picks[i] % names.length]);
+	}
+
+	/**
+	 * Describes every block in the MMU
+	 */
+	@Benchmark
+	public String describe()
+	{
+		return mmu.toString();
+	}
+}
@@ -0,0 +1,131 @@
+package binarybuddysystem.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import binarybuddysystem.Handle;
+import binarybuddysystem.MMU;
+
+/**
+ * Fill to full: a new MMU is filled by handle until no chunk is left, then
+ * emptied again. Each invocation is one whole fill or drain, timed on its own, so the
+ * cost of splitting a big MMU all the way down and of merging it back up shows.
+ * Making the MMU is done in the setup and not timed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class FillBenchmark
+{
+	@Param({"1048576", "67108864", "1073741824"})
+	public int memSize;
+
+	@Param({"64", "4096"})
+	public int chunkSize;
+
+	@Param({"uniform", "small", "powers", "bimodal"})
+	public String distribution;
+
+	private Workload workload;
+	private long[] handles;		//Blocks allocated by the last fill
+
+	@Setup(Level.Trial)
+	public void setUpTrial()
+	{
+		workload = new Workload(distribution, memSize, chunkSize);
+		//Even the smallest requests can't make more blocks than chunks
+		handles = new long[memSize / chunkSize];
+	}
+
+	/**
+	 * A new MMU for every invocation
+	 */
+	@State(Scope.Thread)
+	public static class Empty
+	{
+		MMU mmu;
+
+		@Setup(Level.Invocation)
+		public void setUp(FillBenchmark bench)
+		{
+			mmu = new MMU(bench.memSize, bench.chunkSize);
+		}
+	}
+
+	/**
+	 * A full MMU for every invocation
+	 */
+	@State(Scope.Thread)
+	public static class Full
+	{
+		MMU mmu;
+		int count;
+
+		@Setup(Level.Invocation)
+		public void setUp(FillBenchmark bench)
+		{
+			mmu = new MMU(bench.memSize, bench.chunkSize);
+			count = bench.fill(mmu);
+		}
+	}
+
+	/**
+	 * Allocates from the workload until a request doesn't fit, then fills what is
+	 * left with single chunks
+	 * @return the number of blocks allocated
+	 */
+	int fill(MMU mmu)
+	{
+		int count = 0;
+		for(int i = 0; ; i++)
+		{
+			long handle = mmu.allocate(workload.sizes[i & Workload.MASK]);
+			if(handle == Handle.NONE)
+				break;
+			handles[count++] = handle;
+		}
+
+		for(long handle; (handle = mmu.allocate(1)) != Handle.NONE; )
+			handles[count++] = handle;
+		return count;
+	}
+
+	/**
+	 * Fills a new MMU
+	 */
+	@Benchmark
+	public int fillToFull(Empty empty)
+	{
+		return fill(empty.mmu);
+	}
+
+	/**
+	 * Frees every block of a full MMU, in the order they were allocated
+	 */
+	@Benchmark
+	public int drain(Full full)
+	{
+		int freed = 0;
+		for(int i = 0; i < full.count; i++)
+		{
+			if(full.mmu.free(handles[i]))
+				freed++;
+		}
+		return freed;
+	}
+}
@@ -0,0 +1,59 @@
+package binarybuddysystem.bench;
+
+import java.util.Random;
+
+/**
+ * Request sizes and picks for the benchmarks, made up front from a fixed seed
+ * so that every run asks the MMU for the same things and the random number
+ * generator is not part of what is measured.
+ */
+final class Workload
+{
+	static final int LENGTH = 1 << 16;	//Entries before the workload repeats, a power of 2
+	static final int MASK = LENGTH - 1;
+
+	final int[] sizes = new int[LENGTH];
+	final int[] picks = new int[LENGTH];	//Random numbers, for choosing a victim
+
+	/**
+	 * Makes a workload
+	 * @param distribution "uniform", "small", "powers" or "bimodal"
+	 * @param memSize memory size of the MMU, requests are at most 1/64 of it
+	 * @param chunkSize chunk size of the MMU
+	 */
+	Workload(String distribution, int memSize, int chunkSize)
+	{
+		Random random = new Random(42);
+		int largest = Math.max(chunkSize, memSize / 64);
+
+		for(int i = 0; i < LENGTH; i++)
+		{
+			sizes[i] = size(distribution, random, chunkSize, largest);
+			picks[i] = random.nextInt(Integer.MAX_VALUE);
+		}
+	}
+
+	private static int size(String distribution, Random random, int chunkSize, int largest)
+	{
+		switch(distribution)
+		{
+		case "uniform":
+			//Anything up to the largest request
+			return 1 + random.nextInt(largest);
+		case "small":
+			//Up to 4 chunks, like lots of little objects
+			return 1 + random.nextInt(Math.min(4 * chunkSize, largest));
+		case "powers":
+			//Exact powers of 2, so there is no internal fragmentation
+			int orders = Integer.numberOfTrailingZeros(largest / chunkSize) + 1;
+			return chunkSize << random.nextInt(orders);
+		case "bimodal":
+			//Mostly small requests with a few big buffers
+			if(random.nextInt(10) == 0)
+				return largest / 2 + random.nextInt(largest / 2);
+			return 1 + random.nextInt(chunkSize);
+		default:
+			throw new IllegalArgumentException("Unknown size distribution " + distribution);
+		}
+	}
+}
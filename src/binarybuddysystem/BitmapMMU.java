@@ -0,0 +1,371 @@
+package binarybuddysystem;
+
+import java.nio.LongBuffer;
+
+/**
+ * A binary buddy MMU that keeps all of its state in bit arrays instead of
+ * Slot objects.
+ *
+ * The chunks form a complete binary tree stored heap style: node 1 is the
+ * whole memory, and node n has the children 2n and 2n + 1. A block of
+ * 2^k chunks starting at chunk index i is node (2^(maxOrder - k) + (i >> k)),
+ * so a block's buddy is found by flipping the last bit of its node and never
+ * has to be stored.
+ *
+ * Per node the MMU keeps:
+ *  - a split bit, set if the node has been cut into its two children
+ *  - a pair bit (on the parent), which is free(left) XOR free(right).
+ *    Freeing a block flips its pair bit, and if the bit turns to 0 the
+ *    buddy is free too and the two merge (Knuth's buddy state).
+ *  - a free bit, set if the node is a hole. The free bits of one order sit
+ *    next to each other, so a hole of any order is found by scanning words,
+ *    with a summary bit per word so that empty words are skipped.
+ *
+ * That is about 4 bits per chunk, against a Slot object per chunk for MMU.
+ * All of it, counters included, lives in one LongBuffer, which is either on
+ * the heap or handed in by the caller (see MappedHeap), so the whole state of
+ * the MMU can sit in a memory-mapped file.
+ * Blocks are handed out as handles (see Handle) and there are no process names.
+ */
+public class BitmapMMU implements BuddyAllocator
+{
+	private int chunkSize;		//Minimum chunk size (2^k)
+	private int memorySize;		//Total Memory Size (2^n)
+	private int numChunks;
+	private int maxOrder;		//Order of the whole memory (numChunks = 2^maxOrder)
+
+	private LongBuffer words;	//All of the state below, each part starts at its own word
+
+	private int split;			//Split bit per node
+	private int pairs;			//free(2n) XOR free(2n + 1) per node n
+	private int free;			//Free bit per node
+	private int summary;		//One bit per word of free, set if the word is not 0
+	private int counts;			//Number of holes of each order
+	private int hints;			//Lowest word of free that may hold a hole of each order
+	private int length;			//Total number of words
+
+	/**
+	 * constructor for BitmapMMU, needs memorySize and chunkSize.
+	 * @param memSize total memory size in bytes (2^n)
+	 * @param chunkSize minimum chunk size in bytes (2^k)
+	 */
+	public BitmapMMU(int memSize, int chunkSize)
+	{
+		this(memSize, chunkSize, LongBuffer.wrap(new long[stateWords(memSize, chunkSize)]), false);
+	}
+
+	/**
+	 * constructor for BitmapMMU that keeps its state in a given buffer.
+	 * @param memSize total memory size in bytes (2^n)
+	 * @param chunkSize minimum chunk size in bytes (2^k)
+	 * @param state buffer of at least stateWords(memSize, chunkSize) words, from its position on
+	 * @param restore true to carry on from the state already in the buffer,
+	 * false to start with the entire memory as one hole
+	 */
+	public BitmapMMU(int memSize, int chunkSize, LongBuffer state, boolean restore)
+	{
+		checkSizes(memSize, chunkSize);
+
+		memorySize = memSize;
+		this.chunkSize = chunkSize;
+		numChunks = memorySize/chunkSize;
+		maxOrder = Integer.numberOfTrailingZeros(numChunks);
+
+		//Internal nodes are 1 to numChunks - 1, all nodes are 1 to 2*numChunks - 1
+		split = 0;
+		pairs = split + words(numChunks);
+		free = pairs + words(numChunks);
+		summary = free + words(2 * numChunks);
+		counts = summary + words(words(2 * numChunks));
+		hints = counts + maxOrder + 1;
+		length = hints + maxOrder + 1;
+
+		if(state.remaining() < length)
+			throw new IllegalArgumentException("State buffer holds " + state.remaining() + " words, needs " + length);
+		words = state.slice();
+
+		if(!restore)
+		{
+			for(int i = 0; i < length; i++)
+				words.put(i, 0);
+
+			//Initialize that the entire memory is one unit that is a hole
+			setFree(1, maxOrder);
+		}
+	}
+
+	/**
+	 * Gets the number of words a BitmapMMU needs to keep its state
+	 * @param memSize total memory size in bytes (2^n)
+	 * @param chunkSize minimum chunk size in bytes (2^k)
+	 * @return number of longs
+	 */
+	public static int stateWords(int memSize, int chunkSize)
+	{
+		checkSizes(memSize, chunkSize);
+		int chunks = memSize / chunkSize;
+		int orders = Integer.numberOfTrailingZeros(chunks) + 1;
+		return 2 * words(chunks) + words(2 * chunks) + words(words(2 * chunks)) + 2 * orders;
+	}
+
+	/**
+	 * Allocates a block big enough to hold size bytes
+	 * @param size size to allocate (in bytes)
+	 * @return handle of the block (see Handle), Handle.NONE if nothing fits
+	 */
+	public long allocate(int size)
+	{
+		if(size > memorySize)
+			return Handle.NONE;
+
+		//Best fit order for the size
+		int needed = Handle.orderFor(size, chunkSize);
+
+		//Smallest order that has a hole
+		int k = needed;
+		while(k <= maxOrder && words.get(counts + k) == 0)
+			k++;
+
+		if(k > maxOrder)
+			return Handle.NONE;
+
+		int node = findFree(k);
+		clearFree(node, k);
+		if(node > 1)
+			flip(pairs, node >>> 1);
+
+		//Split down, the left half is kept and the right half becomes a hole
+		while(k > needed)
+		{
+			set(split, node);
+			k--;
+			node <<= 1;
+			setFree(node + 1, k);
+			set(pairs, node >>> 1);
+		}
+
+		return Handle.encode((node - (1 << (maxOrder - k))) << k, k);
+	}
+
+	/**
+	 * Frees a block and merges it with its buddies
+	 * @param handle handle of the block
+	 * @return true if successful, false if the handle is not an allocated block
+	 */
+	public boolean free(long handle)
+	{
+		if(handle < 0 || Handle.index(handle) >= numChunks)
+			return false;
+
+		int index = (int) Handle.index(handle);
+		int k = maxOrder;
+		int node = locate(index);
+		k -= 31 - Integer.numberOfLeadingZeros(node);
+
+		//Must be the start of an allocated block of the same size
+		if(k != Handle.order(handle) || (index & ((1 << k) - 1)) != 0 || get(free, node))
+			return false;
+
+		while(node > 1)
+		{
+			int parent = node >>> 1;
+			flip(pairs, parent);
+
+			//Pair bit was 1, so the buddy is a hole too and they merge
+			if(get(pairs, parent))
+				break;
+
+			clearFree(node ^ 1, k);
+			clear(split, parent);
+			node = parent;
+			k++;
+		}
+
+		setFree(node, k);
+		return true;
+	}
+
+	/**
+	 * Gets the size of the block starting at a chunk index
+	 * @param index index of the first chunk of the block
+	 * @return size of the block in chunks, -1 if no block starts there
+	 */
+	public int getSize(int index)
+	{
+		if(index < 0 || index >= numChunks)
+			return -1;
+
+		int k = maxOrder - (31 - Integer.numberOfLeadingZeros(locate(index)));
+		if((index & ((1 << k) - 1)) != 0)
+			return -1;
+
+		return 1 << k;
+	}
+
+	/**
+	 * Checks to see if the block starting at a chunk index is a hole
+	 * @param index index of the first chunk of the block
+	 * @return true if it is the start of a hole, false if otherwise
+	 */
+	public boolean isHole(int index)
+	{
+		return getSize(index) != -1 && get(free, locate(index));
+	}
+
+	/**
+	 * @return the minimum chunk size, in bytes
+	 */
+	public int getChunkSize()
+	{
+		return chunkSize;
+	}
+
+	/**
+	 * @return the total memory size, in bytes
+	 */
+	public int getMemorySize()
+	{
+		return memorySize;
+	}
+
+	/**
+	 * Gets the number of bytes used to keep this MMU's state
+	 * @return bytes used by the bit arrays and counters
+	 */
+	public long metadataBytes()
+	{
+		return 8L * length;
+	}
+
+	/**
+	 * Follows the split bits down from the root to the block holding a chunk
+	 * @param index chunk index
+	 * @return node of the block
+	 */
+	private int locate(int index)
+	{
+		int node = 1;
+		int k = maxOrder;
+
+		while(k > 0 && get(split, node))
+		{
+			k--;
+			node = (node << 1) | ((index >>> k) & 1);
+		}
+
+		return node;
+	}
+
+	/**
+	 * Finds a hole of an order, there must be at least one
+	 * @param k order of the hole
+	 * @return node of the hole
+	 */
+	private int findFree(int k)
+	{
+		int lo = 1 << (maxOrder - k);
+		long hi = (long) lo << 1;
+		int last = (int) ((hi - 1) >>> 6);
+		int w = Math.max((int) words.get(hints + k), lo >>> 6);
+
+		while(w <= last)
+		{
+			//Skip every word that the summary says is empty
+			long s = words.get(summary + (w >>> 6)) & (-1L << (w & 63));
+			if(s == 0)
+			{
+				w = (w | 63) + 1;
+				continue;
+			}
+			w = (w & ~63) + Long.numberOfTrailingZeros(s);
+			if(w > last)
+				break;
+
+			long bits = words.get(free + w);
+			//Orders whose nodes share a word with other orders
+			if(lo > (w << 6))
+				bits &= -1L << (lo & 63);
+			if(hi < ((long) (w + 1) << 6))
+				bits &= (1L << (hi & 63)) - 1;
+
+			if(bits != 0)
+			{
+				words.put(hints + k, w);
+				return (w << 6) + Long.numberOfTrailingZeros(bits);
+			}
+			w++;
+		}
+
+		throw new IllegalStateException("Free count and free bits disagree for order " + k);
+	}
+
+	private void setFree(int node, int k)
+	{
+		int w = node >>> 6;
+		set(free, node);
+		set(summary, w);
+		long count = words.get(counts + k) + 1;
+		words.put(counts + k, count);
+		if(w < words.get(hints + k) || count == 1)
+			words.put(hints + k, w);
+	}
+
+	private void clearFree(int node, int k)
+	{
+		int w = node >>> 6;
+		clear(free, node);
+		if(words.get(free + w) == 0)
+			clear(summary, w);
+		words.put(counts + k, words.get(counts + k) - 1);
+	}
+
+	private static void checkSizes(int memSize, int chunkSize)
+	{
+		if(memSize <= 0 || chunkSize <= 0 || Integer.bitCount(memSize) != 1
+				|| Integer.bitCount(chunkSize) != 1 || chunkSize > memSize)
+			throw new IllegalArgumentException("Memory and chunk sizes must be 2^n with chunkSize <= memSize");
+	}
+
+	private static int words(int bits)
+	{
+		return (bits + 63) >>> 6;
+	}
+
+	//Bit i of the bit array that starts at word base
+
+	private boolean get(int base, int i)
+	{
+		return (words.get(base + (i >>> 6)) & (1L << i)) != 0;
+	}
+
+	private void set(int base, int i)
+	{
+		words.put(base + (i >>> 6), words.get(base + (i >>> 6)) | (1L << i));
+	}
+
+	private void clear(int base, int i)
+	{
+		words.put(base + (i >>> 6), words.get(base + (i >>> 6)) & ~(1L << i));
+	}
+
+	private void flip(int base, int i)
+	{
+		words.put(base + (i >>> 6), words.get(base + (i >>> 6)) ^ (1L << i));
+	}
+
+	public String toString()
+	{
+		StringBuilder content = new StringBuilder("This piece of memory of size " + memorySize + " bytes contains "
+				+ numChunks + " chunks" + "\n");
+		int i = 0;
+		while(i < numChunks)
+		{
+			int size = getSize(i);
+			content.append(isHole(i) ? "Hole" : "Used").append(". size: ").append(size)
+					.append(" chunks, index: ").append(i).append("\n");
+			i += size;
+		}
+
+		return content.toString();
+	}
+}
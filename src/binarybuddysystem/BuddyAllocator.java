@@ -0,0 +1,32 @@
+package binarybuddysystem;
+
+/**
+ * A buddy allocator that hands out blocks as primitive handles (see Handle)
+ * instead of named processes. Nothing is boxed or allocated per call.
+ */
+public interface BuddyAllocator
+{
+	/**
+	 * Allocates the smallest block that can hold a number of bytes
+	 * @param bytes size to allocate
+	 * @return handle of the block, Handle.NONE if nothing fits
+	 */
+	long allocate(int bytes);
+	
+	/**
+	 * Frees a block and merges it with its buddies
+	 * @param handle handle returned by allocate
+	 * @return true if successful, false if the handle is not an allocated block
+	 */
+	boolean free(long handle);
+	
+	/**
+	 * @return the minimum chunk size, in bytes
+	 */
+	int getChunkSize();
+	
+	/**
+	 * @return the total memory size, in bytes
+	 */
+	int getMemorySize();
+}
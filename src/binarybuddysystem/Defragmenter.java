@@ -0,0 +1,161 @@
+package binarybuddysystem;
+
+/**
+ * Compacts an MMU a little at a time, so that free memory split over many
+ * small holes comes back together as big ones.
+ *
+ * It walks the blocks in address order and moves every allocated block it
+ * meets into the lowest hole before it that the block fits in. Blocks only
+ * ever move to lower addresses, so they pack at the start of the memory and
+ * the holes they leave merge at the end. Each move is reported to a Listener,
+ * so the owner of the block can swap its old handle for the new one; in arena
+ * mode the block's memory is copied along.
+ *
+ * The work is done in slices: run(nanos) stops after the block that uses up its
+ * time and the next call carries on from there. The MMU keeps its holes by
+ * address for this, so finding the hole for a block takes a few steps per
+ * order however many holes there are, and no block overruns the slice by much.
+ * The MMU is not thread safe, so run must be called by the thread that owns
+ * the MMU, between requests.
+ */
+public class Defragmenter
+{
+	/**
+	 * Is told about every block that is moved
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called after a block was moved. Its old handle is no longer valid.
+		 * @param from old handle of the block
+		 * @param to new handle of the block
+		 */
+		void relocated(long from, long to);
+	}
+
+	private MMU mmu;
+	private Listener listener;
+	private int numChunks;
+
+	private int cursor;			//Chunk the walk carries on from
+	private int passMoves;		//Blocks moved in the current pass
+	private boolean finished;	//The last full pass moved nothing
+	private long moves;			//Blocks moved in all
+
+	/**
+	 * constructor for Defragmenter
+	 * @param mmu MMU to compact
+	 * @param listener told about every block that is moved
+	 */
+	public Defragmenter(MMU mmu, Listener listener)
+	{
+		this.mmu = mmu;
+		this.listener = listener;
+		numChunks = mmu.getMemorySize() / mmu.getChunkSize();
+	}
+
+	/**
+	 * Compacts for a while
+	 * @param nanos time to spend, checked after every block, so at least one block is looked at
+	 * @return the number of blocks moved
+	 */
+	public int run(long nanos)
+	{
+		long start = System.nanoTime();
+		int moved = 0;
+		finished = false;
+
+		do
+		{
+			if(cursor >= numChunks)
+			{
+				//A pass that moved nothing leaves nothing for the next one
+				cursor = 0;
+				if(passMoves == 0)
+				{
+					finished = true;
+					break;
+				}
+				passMoves = 0;
+			}
+
+			int size = mmu.blockSize(cursor);
+			if(size == 0)
+			{
+				//The cursor ended up inside a hole that merged over it
+				cursor = end(cursor);
+				continue;
+			}
+
+			if(mmu.isAllocated(cursor))
+			{
+				int k = Integer.numberOfTrailingZeros(size);
+				int hole = mmu.lowestHole(k, cursor);
+				if(hole != -1)
+				{
+					long from = Handle.encode(cursor, k);
+					long to = mmu.relocate(from, hole);
+					moved++;
+					passMoves++;
+					listener.relocated(from, to);
+				}
+			}
+			cursor += size;
+		}
+		while(System.nanoTime() - start < nanos);
+
+		moves += moved;
+		return moved;
+	}
+
+	/**
+	 * Compacts until a full pass moves nothing
+	 * @return the number of blocks moved
+	 */
+	public int runAll()
+	{
+		int moved = 0;
+		do
+		{
+			moved += run(Long.MAX_VALUE);
+		}
+		while(!finished);
+
+		return moved;
+	}
+
+	/**
+	 * @return true if the last full pass moved nothing, so running again won't
+	 * help until blocks are allocated or freed
+	 */
+	public boolean isFinished()
+	{
+		return finished;
+	}
+
+	/**
+	 * @return the number of blocks moved since this Defragmenter was made
+	 */
+	public long getMoves()
+	{
+		return moves;
+	}
+
+	/**
+	 * Finds the end of the block a chunk is in
+	 * @param index index of the chunk
+	 * @return index of the chunk after the block
+	 */
+	private int end(int index)
+	{
+		//Only the first chunk of a block has a size, and the block is aligned to it
+		for(int size = 1; size <= numChunks; size <<= 1)
+		{
+			int first = index & -size;
+			if(mmu.blockSize(first) > 0)
+				return first + mmu.blockSize(first);
+		}
+
+		return numChunks;
+	}
+}
@@ -0,0 +1,89 @@
+package binarybuddysystem;
+
+/**
+ * Packs the location of an allocated block into a single long, so that blocks
+ * can be handed out and freed without creating any objects.
+ *
+ * The lowest 6 bits hold the order of the block (it is 2^order chunks long)
+ * and the bits above them hold the index of its first chunk. A valid handle is
+ * never negative, and NONE is returned when nothing could be allocated.
+ */
+public final class Handle
+{
+	/** Returned by allocate when there is no block that fits */
+	public static final long NONE = -1L;
+	
+	private static final int ORDER_BITS = 6;
+	private static final long ORDER_MASK = (1L << ORDER_BITS) - 1;
+	
+	private Handle()
+	{
+	}
+	
+	/**
+	 * Creates the handle of a block
+	 * @param index index of the first chunk of the block
+	 * @param order the block is 2^order chunks
+	 * @return the handle
+	 */
+	public static long encode(long index, int order)
+	{
+		return (index << ORDER_BITS) | order;
+	}
+	
+	/**
+	 * Gets the index of the first chunk of a block
+	 * @param handle handle of the block
+	 * @return chunk index
+	 */
+	public static long index(long handle)
+	{
+		return handle >>> ORDER_BITS;
+	}
+	
+	/**
+	 * Gets the order of a block
+	 * @param handle handle of the block
+	 * @return order, the block is 2^order chunks
+	 */
+	public static int order(long handle)
+	{
+		return (int) (handle & ORDER_MASK);
+	}
+	
+	/**
+	 * Gets the size of a block in chunks
+	 * @param handle handle of the block
+	 * @return size in chunks
+	 */
+	public static long chunks(long handle)
+	{
+		return 1L << order(handle);
+	}
+	
+	/**
+	 * Gets the smallest order whose blocks can hold a number of bytes
+	 * @param bytes size to fit
+	 * @param chunkSize minimum chunk size (2^k)
+	 * @return order of the best fitting block
+	 */
+	public static int orderFor(long bytes, long chunkSize)
+	{
+		if(bytes <= chunkSize)
+			return 0;
+		
+		//Round up to whole chunks, then up to the next power of 2
+		long chunks = (bytes + chunkSize - 1) / chunkSize;
+		return 64 - Long.numberOfLeadingZeros(chunks - 1);
+	}
+	
+	/**
+	 * @return a String denoting the block a handle refers to
+	 */
+	public static String toString(long handle)
+	{
+		if(handle < 0)
+			return "none";
+		return "index: " + index(handle) + ", size: " + chunks(handle) + " chunks";
+	}
+}
@@ -0,0 +1,95 @@
+package binarybuddysystem;
+
+/**
+ * Marks which blocks of each order are holes, so the hole with the lowest
+ * address is found in a few steps however many holes there are.
+ *
+ * Each order has one bit per block of that order, and above it levels of
+ * summary bits, one per 64-bit word of the level below that is not empty.
+ * Setting or clearing a bit and finding the lowest one touch one word per
+ * level, and there are at most 5 levels for an int's worth of chunks.
+ */
+class HoleBits
+{
+	private long[][][] levels;	//Words of each level of each order, the top level is a single word
+
+	/**
+	 * Makes the bits for every order, all clear
+	 * @param maxOrder order of the whole memory
+	 */
+	HoleBits(int maxOrder)
+	{
+		levels = new long[maxOrder + 1][][];
+		for(int k = 0; k <= maxOrder; k++)
+		{
+			int depth = 1;
+			for(int bits = 1 << (maxOrder - k); bits > 64; bits = (bits + 63) >>> 6)
+				depth++;
+
+			levels[k] = new long[depth][];
+			int bits = 1 << (maxOrder - k);
+			for(int l = 0; l < depth; l++)
+			{
+				bits = (bits + 63) >>> 6;
+				levels[k][l] = new long[bits];
+			}
+		}
+	}
+
+	/**
+	 * Marks a block as a hole
+	 * @param order order of the block
+	 * @param index index of the block's first chunk
+	 */
+	void set(int order, int index)
+	{
+		long[][] level = levels[order];
+		int bit = index >>> order;
+		for(int l = 0; l < level.length; l++)
+		{
+			int word = bit >>> 6;
+			boolean empty = level[l][word] == 0;
+			level[l][word] |= 1L << bit;
+			//The levels above already know this word isn't empty
+			if(!empty)
+				return;
+			bit = word;
+		}
+	}
+
+	/**
+	 * Marks a block as no longer a hole
+	 * @param order order of the block
+	 * @param index index of the block's first chunk
+	 */
+	void clear(int order, int index)
+	{
+		long[][] level = levels[order];
+		int bit = index >>> order;
+		for(int l = 0; l < level.length; l++)
+		{
+			int word = bit >>> 6;
+			level[l][word] &= ~(1L << bit);
+			if(level[l][word] != 0)
+				return;
+			bit = word;
+		}
+	}
+
+	/**
+	 * Finds the hole of an order with the lowest address
+	 * @param order order of the hole
+	 * @return index of its first chunk, -1 if there is no hole of that order
+	 */
+	int lowest(int order)
+	{
+		long[][] level = levels[order];
+		if(level[level.length - 1][0] == 0)
+			return -1;
+
+		int bit = 0;
+		for(int l = level.length - 1; l >= 0; l--)
+			bit = (bit << 6) + Long.numberOfTrailingZeros(level[l][bit]);
+		return bit << order;
+	}
+}
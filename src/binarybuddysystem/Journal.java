@@ -0,0 +1,431 @@
+package binarybuddysystem;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead journal that makes an MMU survive a crash without writing
+ * its whole state on every change.
+ *
+ * Every block the MMU allocates or frees is appended to a log as a small
+ * record. Records are gathered into groups and each group is written with a
+ * single force(): once it holds enough records, once its first record has
+ * waited for the window, or when commit() is called. The records of a request
+ * are only gathered while the MMU changes, and the group is written once the
+ * request is done, so a failed write never leaves the MMU half changed and
+ * no group on disk holds half a request. A group that fails to be written is
+ * kept whole and written again with the next one. A group that waits out its
+ * window in a quiet period is written by a timer thread.
+ *
+ * A checkpoint writes a snapshot of the MMU (see MMU.snapshot) and starts the
+ * log over, so opening the journal again restores the last checkpoint and
+ * replays only the log written since, however big the MMU is.
+ *
+ * A change is on disk once the group holding it is. A crash loses the group
+ * that was still being gathered, and a group that was torn while being
+ * written is found by its checksum and dropped.
+ */
+public class Journal implements Closeable
+{
+	private static final long LOG_MAGIC = 0x425544594A524E4CL;	//"BUDYJRNL"
+	private static final byte ALLOCATE = 'A';
+	private static final byte NAMED = 'N';
+	private static final byte FREE = 'F';
+
+	private File checkpoint;
+	private FileChannel log;
+	private MMU mmu;
+
+	private long generation;		//Number of the last checkpoint, the log must match it
+	private int groupSize;			//Records per group
+	private long window;			//Nanoseconds a record may wait for its group
+
+	private ByteBuffer group = ByteBuffer.allocate(4096);
+	private int records;			//Records in the group being gathered
+	private long opened;			//When its first record came in
+	private long groups;			//Groups written, tells the timer if its group is gone
+	private boolean busy;			//A request is adding records, its group waits for settled()
+	private int replayed;			//Records replayed when the journal was opened
+
+	private ScheduledExecutorService timer;		//Writes groups that waited out the window
+	private IOException failure;				//Failed write of the timer, thrown to the MMU next
+
+	/**
+	 * Opens a journal, restoring its MMU from the last checkpoint and the log
+	 * after it. Both files are created, with an empty MMU, if there is no checkpoint.
+	 * @param checkpoint file holding the last checkpoint
+	 * @param log file holding the log
+	 * @param memSize total memory size in bytes (2^n)
+	 * @param chunkSize minimum chunk size in bytes (2^k)
+	 * @param groupSize records gathered before a group is written
+	 * @param window nanoseconds a record may wait before its group is written
+	 * @throws IOException if the files can't be read or written, or hold an MMU of other sizes
+	 */
+	public Journal(File checkpoint, File log, int memSize, int chunkSize, int groupSize, long window) throws IOException
+	{
+		this(checkpoint, new RandomAccessFile(log, "rw").getChannel(), memSize, chunkSize, groupSize, window);
+	}
+
+	/**
+	 * Opens a journal on a log channel that is already open (see the other
+	 * constructor). The journal owns the channel and closes it.
+	 * @param log channel of the log, read and written from its start
+	 */
+	public Journal(File checkpoint, FileChannel log, int memSize, int chunkSize, int groupSize, long window)
+			throws IOException
+	{
+		this.checkpoint = checkpoint;
+		this.log = log;
+		this.groupSize = groupSize;
+		this.window = window;
+
+		try
+		{
+			if(checkpoint.isFile())
+			{
+				try(DataInputStream in = new DataInputStream(new FileInputStream(checkpoint)))
+				{
+					generation = in.readLong();
+					mmu = MMU.restore(in);
+				}
+				if(mmu.getMemorySize() != memSize || mmu.getChunkSize() != chunkSize)
+					throw new IOException("Checkpoint " + checkpoint + " has memory size " + mmu.getMemorySize()
+							+ " and chunk size " + mmu.getChunkSize());
+			}
+			else
+				mmu = new MMU(memSize, chunkSize);
+
+			replay();
+		}
+		catch(IOException | RuntimeException e)
+		{
+			log.close();
+			throw e;
+		}
+
+		mmu.journal = this;
+	}
+
+	/**
+	 * @return the MMU, every block it allocates or frees is journaled
+	 */
+	public MMU getMMU()
+	{
+		return mmu;
+	}
+
+	/**
+	 * @return the number of records replayed from the log when the journal was opened
+	 */
+	public int getReplayed()
+	{
+		return replayed;
+	}
+
+	/**
+	 * Writes the records gathered so far, and waits for them to reach the disk
+	 * @throws IOException if the log can't be written, the records are then kept for the next try
+	 */
+	public synchronized void commit() throws IOException
+	{
+		if(failure != null)
+		{
+			IOException e = failure;
+			failure = null;
+			throw e;
+		}
+		if(records == 0)
+			return;
+
+		//Each group is its length and checksum, then its records
+		CRC32 crc = new CRC32();
+		crc.update(group.array(), 0, group.position());
+		ByteBuffer head = ByteBuffer.allocate(8);
+		head.putInt(group.position()).putInt((int) crc.getValue()).flip();
+
+		//The group is only emptied once it is on disk, and a try that failed is written over
+		long start = log.position();
+		ByteBuffer body = group.duplicate();
+		body.flip();
+		ByteBuffer[] buffers = {head, body};
+		try
+		{
+			while(body.hasRemaining())
+				log.write(buffers);
+			log.force(false);
+		}
+		catch(IOException e)
+		{
+			try
+			{
+				log.position(start);
+			}
+			catch(IOException again)
+			{
+				e.addSuppressed(again);
+			}
+			throw e;
+		}
+
+		group.clear();
+		records = 0;
+		groups++;
+	}
+
+	/**
+	 * Writes a snapshot of the MMU and empties the log. The new checkpoint
+	 * replaces the old one in a single rename, and a log left from before it
+	 * is known by its checkpoint number and ignored, so a crash at any point
+	 * leaves one or the other.
+	 * @throws IOException if the files can't be written
+	 */
+	public synchronized void checkpoint() throws IOException
+	{
+		commit();
+
+		File next = new File(checkpoint.getPath() + ".tmp");
+		try(FileOutputStream file = new FileOutputStream(next))
+		{
+			DataOutputStream out = new DataOutputStream(file);
+			out.writeLong(generation + 1);
+			mmu.snapshot(out);
+			file.getFD().sync();
+		}
+		Files.move(next.toPath(), checkpoint.toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+
+		generation++;
+		startLog();
+	}
+
+	/**
+	 * Writes the records gathered so far and closes the log. The MMU is no
+	 * longer journaled afterwards.
+	 */
+	public synchronized void close() throws IOException
+	{
+		try
+		{
+			commit();
+		}
+		finally
+		{
+			mmu.journal = null;
+			if(timer != null)
+				timer.shutdownNow();
+			log.close();
+		}
+	}
+
+	/**
+	 * Called by the MMU when it allocates a block
+	 * @param name name of the block's Process, null for a block allocated by handle
+	 */
+	synchronized void allocated(int index, int order, String name, int bytes)
+	{
+		byte[] utf = name == null ? null : name.getBytes(StandardCharsets.UTF_8);
+		reserve(10 + (utf == null ? 0 : 4 + utf.length));
+
+		group.put(utf == null ? ALLOCATE : NAMED).putInt(index).put((byte) order).putInt(bytes);
+		if(utf != null)
+			group.putInt(utf.length).put(utf);
+		added();
+	}
+
+	/**
+	 * Called by the MMU when it frees a block
+	 */
+	synchronized void freed(int index)
+	{
+		reserve(5);
+		group.put(FREE).putInt(index);
+		added();
+	}
+
+	/**
+	 * Makes room for a record in the group, growing it if needed
+	 */
+	private void reserve(int bytes)
+	{
+		if(group.remaining() < bytes)
+		{
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(group.capacity() * 2, group.position() + bytes));
+			group.flip();
+			group = bigger.put(group);
+		}
+	}
+
+	/**
+	 * Counts a record. The first one of a group has the timer write the group
+	 * when its window is up, in case no request comes along to do it.
+	 */
+	private void added()
+	{
+		busy = true;
+		if(records++ != 0)
+			return;
+
+		opened = System.nanoTime();
+		if(window > 0 && window < Long.MAX_VALUE)
+		{
+			if(timer == null)
+			{
+				timer = Executors.newSingleThreadScheduledExecutor(r -> {
+					Thread t = new Thread(r, "Journal timer");
+					t.setDaemon(true);
+					return t;
+				});
+			}
+			long group = groups;
+			timer.schedule(() -> expired(group), window, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Called by the timer when a group's window is up. A request that is still
+	 * adding records writes the group itself when it is done.
+	 * @param group number of the group, it may have been written already
+	 */
+	private synchronized void expired(long group)
+	{
+		if(busy || group != groups || records == 0 || failure != null || !log.isOpen())
+			return;
+
+		try
+		{
+			commit();
+		}
+		catch(IOException e)
+		{
+			failure = e;
+		}
+	}
+
+	/**
+	 * Called by the MMU once a request is done and the MMU is consistent again.
+	 * Writes the group if it is full or has waited long enough.
+	 * @throws UncheckedIOException if the group, or one the timer wrote before it, couldn't be written
+	 */
+	synchronized void settled()
+	{
+		busy = false;
+		if(failure == null && (records == 0 || records < groupSize && System.nanoTime() - opened < window))
+			return;
+
+		try
+		{
+			commit();
+		}
+		catch(IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Replays the groups in the log that belong to the current checkpoint, up
+	 * to the first one that is torn, and cuts the log there
+	 */
+	private void replay() throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(16);
+		if(log.read(header, 0) != 16 || header.getLong(0) != LOG_MAGIC || header.getLong(8) != generation)
+		{
+			//A new log, or one the checkpoint already holds
+			startLog();
+			return;
+		}
+
+		long position = 16;
+		ByteBuffer head = ByteBuffer.allocate(8);
+		while(true)
+		{
+			head.clear();
+			if(log.read(head, position) != 8)
+				break;
+
+			int length = head.getInt(0);
+			if(length <= 0 || position + 8 + length > log.size())
+				break;
+
+			ByteBuffer body = ByteBuffer.allocate(length);
+			log.read(body, position + 8);
+			CRC32 crc = new CRC32();
+			crc.update(body.array());
+			if((int) crc.getValue() != head.getInt(4))
+				break;
+
+			body.flip();
+			apply(body);
+			position += 8 + length;
+		}
+
+		log.truncate(position);
+		log.position(position);
+	}
+
+	/**
+	 * Applies the records of one group to the MMU
+	 */
+	private void apply(ByteBuffer records) throws IOException
+	{
+		while(records.hasRemaining())
+		{
+			byte type = records.get();
+			int index = records.getInt();
+			boolean done;
+
+			if(type == FREE)
+			{
+				int size = mmu.blockSize(index);
+				done = size > 0 && mmu.free(Handle.encode(index, Integer.numberOfTrailingZeros(size)));
+			}
+			else
+			{
+				int order = records.get();
+				int bytes = records.getInt();
+				String name = null;
+				if(type == NAMED)
+				{
+					byte[] utf = new byte[records.getInt()];
+					records.get(utf);
+					name = new String(utf, StandardCharsets.UTF_8);
+				}
+				done = mmu.claim(index, order, name, bytes);
+			}
+
+			if(!done)
+				throw new IOException("Journal record " + replayed + " doesn't fit the MMU");
+			replayed++;
+		}
+	}
+
+	/**
+	 * Empties the log and writes its header for the current checkpoint
+	 */
+	private void startLog() throws IOException
+	{
+		log.truncate(0);
+		ByteBuffer header = ByteBuffer.allocate(16);
+		header.putLong(LOG_MAGIC).putLong(generation).flip();
+		log.write(header, 0);
+		log.force(false);
+		log.position(16);
+	}
+}
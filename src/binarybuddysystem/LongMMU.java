@@ -0,0 +1,186 @@
+package binarybuddysystem;
+
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * A buddy allocator for address ranges too big for an int, up to 2^62 bytes
+ * and 2^57 chunks. It only manages addresses, there is no memory behind them,
+ * so it suits reserving parts of a large virtual address space.
+ *
+ * Unlike MMU it keeps no entry per chunk. Each order has a sorted set of the
+ * holes of that size and the allocated blocks are kept by index, so the
+ * metadata grows with the number of blocks, at most one hole per order for
+ * each allocated block, and not with the size of the memory. A terabyte
+ * managed in 4 KB chunks starts out as a single hole.
+ *
+ * Blocks are handed out as handles (see Handle). A handle must stay positive,
+ * which leaves 57 bits for the chunk index, so the range may hold at most 2^57
+ * chunks: 2^62 bytes needs chunks of at least 32 bytes.
+ *
+ * The lowest hole of the best fitting size is always taken, which keeps
+ * allocations packed at the start of the range.
+ */
+public class LongMMU
+{
+	private long chunkSize;
+	private long memorySize;
+	private int maxOrder;
+
+	private TreeSet<Long>[] holes;			//Index of the holes of each order
+	private HashMap<Long, Integer> blocks;	//Order of each allocated block, by index
+	private long reserved;					//Bytes in allocated blocks
+
+	/**
+	 * constructor for LongMMU
+	 * @param memSize total memory size in bytes (2^n, at most 2^62)
+	 * @param chunkSize minimum chunk size in bytes (2^k, at least memSize / 2^57)
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public LongMMU(long memSize, long chunkSize)
+	{
+		if(memSize <= 0 || chunkSize <= 0 || Long.bitCount(memSize) != 1
+				|| Long.bitCount(chunkSize) != 1 || chunkSize > memSize || memSize > 1L << 62)
+			throw new IllegalArgumentException("Memory and chunk sizes must be 2^n with chunkSize <= memSize <= 2^62");
+		if(memSize / chunkSize > 1L << 57)
+			throw new IllegalArgumentException("At most 2^57 chunks fit in a handle");
+
+		this.chunkSize = chunkSize;
+		this.memorySize = memSize;
+		maxOrder = Long.numberOfTrailingZeros(memSize / chunkSize);
+
+		holes = new TreeSet[maxOrder + 1];
+		for(int k = 0; k <= maxOrder; k++)
+			holes[k] = new TreeSet<Long>();
+		blocks = new HashMap<Long, Integer>();
+
+		//Initialize that the entire memory is one unit that is a hole
+		holes[maxOrder].add(0L);
+	}
+
+	/**
+	 * Allocates a block big enough for a number of bytes
+	 * @param bytes size to allocate
+	 * @return handle of the block, Handle.NONE if there is no hole big enough
+	 */
+	public long allocate(long bytes)
+	{
+		if(bytes <= 0 || bytes > memorySize)
+			return Handle.NONE;
+
+		int needed = Handle.orderFor(bytes, chunkSize);
+
+		//Smallest order that has a hole
+		int k = needed;
+		while(k <= maxOrder && holes[k].isEmpty())
+			k++;
+
+		if(k > maxOrder)
+			return Handle.NONE;
+
+		//The left half is kept and the right half becomes a hole
+		long index = holes[k].pollFirst();
+		while(k > needed)
+		{
+			k--;
+			holes[k].add(index + (1L << k));
+		}
+
+		blocks.put(index, needed);
+		reserved += chunkSize << needed;
+		return Handle.encode(index, needed);
+	}
+
+	/**
+	 * Frees an allocated block and merges it with its buddies
+	 * @param handle handle of the block
+	 * @return true if successful, false if the handle is not an allocated block
+	 */
+	public boolean free(long handle)
+	{
+		if(handle < 0)
+			return false;
+
+		long index = Handle.index(handle);
+		int k = Handle.order(handle);
+		Integer order = blocks.get(index);
+		if(order == null || order != k)
+			return false;
+
+		blocks.remove(index);
+		reserved -= chunkSize << k;
+
+		//Merge for as long as the buddy is a hole of the same size
+		while(k < maxOrder && holes[k].remove(index ^ (1L << k)))
+		{
+			index &= ~(1L << k);
+			k++;
+		}
+
+		holes[k].add(index);
+		return true;
+	}
+
+	/**
+	 * Gets the address of an allocated block
+	 * @param handle handle of the block
+	 * @return offset of the block's first byte from the start of the range
+	 */
+	public long address(long handle)
+	{
+		return Handle.index(handle) * chunkSize;
+	}
+
+	public long getChunkSize()
+	{
+		return chunkSize;
+	}
+
+	public long getMemorySize()
+	{
+		return memorySize;
+	}
+
+	/**
+	 * @return the bytes in allocated blocks
+	 */
+	public long getReserved()
+	{
+		return reserved;
+	}
+
+	/**
+	 * @return the number of allocated blocks
+	 */
+	public int getBlocks()
+	{
+		return blocks.size();
+	}
+
+	/**
+	 * @return the number of holes of all sizes
+	 */
+	public int getHoles()
+	{
+		int count = 0;
+		for(int k = 0; k <= maxOrder; k++)
+			count += holes[k].size();
+		return count;
+	}
+
+	/**
+	 * @return a String listing the holes of each order that has any
+	 */
+	public String toString()
+	{
+		StringBuilder content = new StringBuilder();
+		for(int k = maxOrder; k >= 0; k--)
+		{
+			if(!holes[k].isEmpty())
+				content.append("Order ").append(k).append(": ").append(holes[k].size()).append(" holes\n");
+		}
+
+		return content.append(blocks.size()).append(" blocks, ").append(reserved).append(" bytes reserved\n")
+				.toString();
+	}
+}
@@ -1,14 +1,52 @@
 package binarybuddysystem;
 
-public class MMU
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+public class MMU implements BuddyAllocator
 {
-	Slot[] memory; 	//Might make wrapper class (Chunk)
-						//Each element is the minimum chunk size
-						//Should it be a LinkedList instead?
+	Slot[][] pages;	//Slot of each chunk, in pages that are only created when first written
+						//A missing page holds no block starts, so all of its Slots are null
+	
+	private static final int PAGE_BITS = 10;	//Slots per page, as a power of 2
 	
 	private int chunkSize;	//Minimum chunk size (2^k)
 	private int memorySize;		//Total Memory Size	(2^n)
 	private int numChunks;
+	private int maxOrder;		//Order of the whole memory (numChunks = 2^maxOrder)
+	private int[] freeLists;	//Index of the first hole of each order (size 2^order chunks), -1 if none
+	private HashMap<String, Integer> processes;	//Index of the chunk holding each process, by name
+	private ByteBuffer arena;		//Memory behind the chunks in arena mode, null otherwise
+	private int[] freeCounts;		//Number of holes of each order
+	private int holeOrders;			//Bit k is set when there is a hole of order k
+	private long holeChunks;		//Chunks in holes
+	private HoleBits holeBits;		//Holes by address, made by lowestHole when first used, null before
+	private long requestedBytes;	//Bytes asked for by the allocated blocks
+	private long reservedBytes;		//Bytes in the allocated blocks
+	
+	private static final long SNAPSHOT_MAGIC = 0x42554459534E4150L;	//"BUDYSNAP"
+	private static final int SNAPSHOT_VERSION = 1;
+	
+	Journal journal;				//Told about every block allocated and freed, null if none
+	TraceRecorder recorder;			//Told about every request, null if none
+	
+	private int lazyThreshold;		//Pairs of holes per order left unmerged when freeing, 0 to always merge
+	private int[] lazyPairs;		//Pairs of buddy holes of each order that are both on the free list
+	private long splitsAvoided;		//Allocations served by a hole whose buddy is also a hole
+	private long mergesAvoided;		//Frees that left a hole next to a free buddy
+	
+	//Stands in for the Process of blocks allocated by handle, so that they aren't holes
+	private static final Process BLOCK = new Process("(handle)", 0);
 	/*
 	 * memorySize = memory.length * minChunkSize;
 	 */
@@ -25,10 +63,37 @@ public class MMU
 		numChunks = memorySize/chunkSize;
 		//initialize memory # of Chunks = memorySize/ChunkSize
 		//If prior 2 are chosen correctly, should divide evenly
-		memory = new Slot[numChunks];
+		pages = new Slot[((numChunks - 1) >>> PAGE_BITS) + 1][];
+		
+		//One free list per order, all empty to begin with
+		maxOrder = order(numChunks);
+		freeLists = new int[maxOrder + 1];
+		freeCounts = new int[maxOrder + 1];
+		lazyPairs = new int[maxOrder + 1];
+		for(int k = 0; k <= maxOrder; k++)
+			freeLists[k] = -1;
 		
 		//Initialize that the entire memory is one unit that is a hole
-		memory[0]=new Slot(null, numChunks, 0, 0);
+		setSlot(0, new Slot(null, numChunks, 0, 0));
+		push(0);
+		
+		processes = new HashMap<String, Integer>();
+	}
+	
+	/**
+	 * constructor for MMU, needs memorySize and chunkSize. In arena mode the MMU
+	 * also owns memorySize bytes of direct (off-heap) memory, and every block
+	 * can be used as a ByteBuffer through buffer(handle).
+	 * @param memSize total memory size in bytes (2^n)
+	 * @param chunkSize minimum chunk size in bytes (2^k)
+	 * @param arena true to back the chunks with real memory
+	 */
+	public MMU(int memSize, int chunkSize, boolean arena)
+	{
+		this(memSize, chunkSize);
+		
+		if(arena)
+			this.arena = ByteBuffer.allocateDirect(memSize);
 	}
 	
 	/**
@@ -39,54 +104,550 @@ public class MMU
 	 */
 	public int[] allocate(String name, int size)
 	{
+		if(recorder != null)
+			recorder.named(name, size);
+		
 		Process p = new Process(name, size);
 		//Need to find best chunkSize to fit process in
 		int processSize = p.size();
 		
 		//If process of same name exists
-		if(getProcess(p.getName()) != null)
+		if(processes.containsKey(p.getName()))
 			return null;
 		
-		//Start at minChunkSize and keep doubling until processSize fits.
-		//This will give us the best fit for the process
-		int i = chunkSize;
-		while(i<processSize){
-			i = i << 1 ;
-		}
-		
-		//This will give us the amount of chunks needed for this process in memory.
-		int chunksNeeded= i / chunkSize;
-		
-		//Now that we have the number of chunks, lets find a hole that has enough space in it to fit
-		i=0;
-		boolean allocated = false;
-		while(i<numChunks && !allocated){
-			Slot s = memory[i];
-			int initialSlotSize = s.getSize(); 
-			if(s.isHole()){
-				//We found a hole, lets see if the process can fit in here
-				if(s.getSize()>=chunksNeeded){
-					//process will fit in slot, lets see if we can make smaller slots
-					//so the process fits better
-					while(s.getSize()/2 >=chunksNeeded){
-						s.cutSize();
-						s.setPoint(s.getPoint()*2);
-						//Need to make a new slot to represent the hole that was created
-						Slot hole = new Slot(null, s.getSize(), s.getPoint()+1, s.getPoint());
-						memory[i+s.getSize()]=hole;
-						s.setRef(s.getPoint()+1);
-					}
-					//finally set the process to the slot after all the holes
-					s.setProcess(p);
-					allocated = true;
-					int [] ret = {i, s.getSize()};
-					return ret;
-				}
+		//Larger than the whole memory, can never fit
+		if(processSize > memorySize)
+			return null;
+		
+		//Find the best fitting hole and split it down
+		int index = take(Handle.orderFor(processSize, chunkSize));
+		if(index == -1)
+			return null;
+		
+		//finally set the process to the slot after all the holes
+		use(index, p, processSize);
+		processes.put(p.getName(), index);
+		int [] ret = {index, slot(index).getSize()};
+		journaled();
+		return ret;
+	}
+	
+	/**
+	 * Allocates a block without a Process or name. Nothing is created on the heap
+	 * once every chunk index has been used at least once.
+	 * @param bytes size to allocate
+	 * @return handle of the block (see Handle), Handle.NONE if it didn't allocate
+	 */
+	public long allocate(int bytes)
+	{
+		int needed = Handle.orderFor(bytes, chunkSize);
+		int index = bytes > memorySize ? -1 : take(needed);
+		
+		long handle = Handle.NONE;
+		if(index != -1)
+		{
+			use(index, BLOCK, bytes);
+			handle = Handle.encode(index, needed);
+		}
+		
+		if(recorder != null)
+			recorder.allocated(bytes, handle);
+		journaled();
+		return handle;
+	}
+	
+	/**
+	 * Frees a block by its handle. If the block belongs to a named Process, the
+	 * Process is removed as well.
+	 * @param handle handle of the block
+	 * @return true if successful, false if the handle is not an allocated block
+	 */
+	public boolean free(long handle)
+	{
+		String name = recorder == null ? null : nameOf(handle);
+		if(!release(handle))
+			return false;
+		
+		settle((int) Handle.index(handle));
+		if(recorder != null)
+			recorder.freed(handle, name);
+		journaled();
+		return true;
+	}
+	
+	/**
+	 * Changes the size of an allocated block, keeping its Process and, in arena
+	 * mode, its memory. A block that shrinks gives its tail back as holes and one
+	 * that grows takes in the holes after it if they are its buddies, both without
+	 * moving. Only when neither works is it moved to a new block, which copies
+	 * its memory.
+	 * @param handle handle of the block
+	 * @param bytes new size in bytes
+	 * @return handle of the resized block, Handle.NONE if it didn't fit, in which case the block is left as it was
+	 */
+	public long reallocate(long handle, int bytes)
+	{
+		String name = recorder == null ? null : nameOf(handle);
+		long moved = resize(handle, bytes);
+		if(recorder != null)
+			recorder.reallocated(handle, bytes, moved, name);
+		journaled();
+		return moved;
+	}
+	
+	/**
+	 * Changes the size of an allocated block (see reallocate)
+	 */
+	private long resize(long handle, int bytes)
+	{
+		if(handle < 0 || Handle.index(handle) >= numChunks || bytes > memorySize)
+			return Handle.NONE;
+		
+		int index = (int) Handle.index(handle);
+		Slot s = slot(index);
+		if(s == null || s.isHole() || s.getSize() != Handle.chunks(handle))
+			return Handle.NONE;
+		
+		int k = Handle.order(handle);
+		int needed = Handle.orderFor(bytes, chunkSize);
+		Process p = s.getProcess() == BLOCK ? BLOCK : new Process(s.getProcess().getName(), bytes);
+		
+		if(needed <= k || absorb(index, k, needed))
+		{
+			//Cut off the second half until the block is small enough
+			for(int j = k; j > needed; j--)
+				push(split(index));
+			
+			requestedBytes += bytes - s.getRequested();
+			reservedBytes += ((long) chunkSize << needed) - ((long) chunkSize << k);
+			s.setRequested(bytes);
+			s.setProcess(p);
+			
+			//Replayed as the old block freed and the new one allocated where it was
+			if(journal != null)
+			{
+				journal.freed(index);
+				journal.allocated(index, needed, p == BLOCK ? null : p.getName(), bytes);
+			}
+			return Handle.encode(index, needed);
+		}
+		
+		//Last resort, move the block
+		int target = take(needed);
+		if(target == -1)
+			return Handle.NONE;
+		
+		move(index, target, p, bytes);
+		return Handle.encode(target, needed);
+	}
+	
+	/**
+	 * Gets the size of the block that starts at a chunk
+	 * @param index index of the chunk
+	 * @return size in chunks, 0 if no block starts at the chunk
+	 */
+	int blockSize(int index)
+	{
+		Slot s = index < 0 || index >= numChunks ? null : slot(index);
+		return s == null ? 0 : s.getSize();
+	}
+	
+	/**
+	 * Checks to see if an allocated block starts at a chunk
+	 * @param index index of the chunk
+	 * @return true if the chunk starts a block that is not a hole
+	 */
+	boolean isAllocated(int index)
+	{
+		return blockSize(index) > 0 && !slot(index).isHole();
+	}
+	
+	/**
+	 * Finds the hole with the lowest address that a block fits in
+	 * @param order order of the block
+	 * @param below only holes before this chunk are looked at
+	 * @return index of the hole, -1 if there is none
+	 */
+	int lowestHole(int order, int below)
+	{
+		//Only a Defragmenter asks, so only then are the holes kept by address
+		if(holeBits == null)
+		{
+			holeBits = new HoleBits(maxOrder);
+			for(int k = 0; k <= maxOrder; k++)
+			{
+				for(int i = freeLists[k]; i != -1; i = slot(i).getNext())
+					holeBits.set(k, i);
 			}
-			i+=initialSlotSize;
 		}
 		
-		return null;
+		int lowest = -1;
+		for(int k = order; k <= maxOrder; k++)
+		{
+			int i = holeBits.lowest(k);
+			if(i != -1 && i < below && (lowest == -1 || i < lowest))
+				lowest = i;
+		}
+		
+		return lowest;
+	}
+	
+	/**
+	 * Allocates a block at a given place, cutting it out of the hole it is in.
+	 * Used to replay a journal, where blocks must end up where they were.
+	 * @param index index of the block's first chunk
+	 * @param order order of the block
+	 * @param name name of the block's Process, null for a block allocated by handle
+	 * @param bytes bytes asked for
+	 * @return true if successful, false if that part of the memory is not free
+	 */
+	boolean claim(int index, int order, String name, int bytes)
+	{
+		if(index < 0 || order > maxOrder || (index & ((1 << order) - 1)) != 0 || index >= numChunks
+				|| (name != null && processes.containsKey(name)))
+			return false;
+		
+		//Find the block the chunk is in, it is the first one that starts at or before it
+		int start = index;
+		for(int size = 2 << order; slot(start) == null || slot(start).getSize() == 0; size <<= 1)
+			start = index & -size;
+		
+		Slot s = slot(start);
+		if(!s.isHole() || start + s.getSize() < index + (1 << order) || !listed(start))
+		{
+			//The place may be free but in holes that lazy merging left apart
+			if(lazyThreshold > 0 && coalesce() > 0)
+				return claim(index, order, name, bytes);
+			return false;
+		}
+		
+		//Split down to the block, the halves it is not in become holes
+		unlink(start);
+		while(slot(start).getSize() > 1 << order)
+		{
+			int right = split(start);
+			if(index >= right)
+			{
+				push(start);
+				start = right;
+			}
+			else
+				push(right);
+		}
+		
+		Process p = name == null ? BLOCK : new Process(name, bytes);
+		use(index, p, bytes);
+		if(name != null)
+			processes.put(name, index);
+		return true;
+	}
+	
+	/**
+	 * Moves an allocated block into a hole, carrying its Process and, in arena
+	 * mode, its memory along
+	 * @param handle handle of the block
+	 * @param hole index of a hole the block fits in
+	 * @return the new handle of the block
+	 */
+	long relocate(long handle, int hole)
+	{
+		int index = (int) Handle.index(handle);
+		int k = Handle.order(handle);
+		
+		//Take the first part of the hole that is the block's size
+		unlink(hole);
+		for(int j = order(slot(hole).getSize()); j > k; j--)
+			push(split(hole));
+		
+		Slot s = slot(index);
+		move(index, hole, s.getProcess(), s.getRequested());
+		if(recorder != null)
+			recorder.relocated(handle, Handle.encode(hole, k));
+		journaled();
+		return Handle.encode(hole, k);
+	}
+	
+	/**
+	 * Allocates a block for each of several sizes at once. Sizes of the same order
+	 * are served together, largest order first: each hole taken is cut into as
+	 * many blocks of that order as are still needed, so it is split no more than
+	 * once per level no matter how many blocks come out of it.
+	 * @param sizes sizes to allocate (in bytes)
+	 * @return the handle for each size, Handle.NONE for the ones that didn't fit
+	 */
+	public long[] allocateBatch(int[] sizes)
+	{
+		long[] handles = new long[sizes.length];
+		
+		//Group the requests by order, keeping them in the order given
+		int[] orders = new int[sizes.length];
+		int[] start = new int[maxOrder + 3];
+		for(int i = 0; i < sizes.length; i++)
+		{
+			//Requests bigger than the memory go in a group of their own that is never served
+			orders[i] = sizes[i] > memorySize ? maxOrder + 1 : Handle.orderFor(sizes[i], chunkSize);
+			start[orders[i] + 1]++;
+		}
+		for(int k = 0; k <= maxOrder + 1; k++)
+			start[k + 1] += start[k];
+		
+		int[] requests = new int[sizes.length];
+		int[] fill = Arrays.copyOf(start, start.length);
+		for(int i = 0; i < sizes.length; i++)
+			requests[fill[orders[i]]++] = i;
+		
+		for(int i = start[maxOrder + 1]; i < sizes.length; i++)
+			handles[requests[i]] = Handle.NONE;
+		
+		for(int k = maxOrder; k >= 0; k--)
+		{
+			int next = start[k];
+			int end = start[k + 1];
+			
+			while(next < end)
+			{
+				int j = smallestHole(k);
+				if(j > maxOrder)
+					break;
+				
+				int index = freeLists[j];
+				unlink(index);
+				int count = Math.min(end - next, 1 << (j - k));
+				carve(index, j, k, count, sizes, requests, next, handles);
+				next += count;
+			}
+			
+			//Nothing left that is big enough
+			for(; next < end; next++)
+				handles[requests[next]] = Handle.NONE;
+		}
+		
+		if(recorder != null)
+		{
+			for(int i = 0; i < sizes.length; i++)
+				recorder.allocated(sizes[i], handles[i]);
+		}
+		journaled();
+		return handles;
+	}
+	
+	/**
+	 * Frees several blocks at once. The blocks are emptied first and then merged
+	 * in address order in a single pass, so buddies freed together merge straight
+	 * into one hole instead of each going on a free list first.
+	 * @param handles handles of the blocks
+	 * @return the number of blocks freed, handles that are not allocated blocks are skipped
+	 */
+	public int freeBatch(long[] handles)
+	{
+		long[] sorted = Arrays.copyOf(handles, handles.length);
+		//The chunk index is the high part of a handle, so this sorts by address
+		Arrays.sort(sorted);
+		
+		int freed = 0;
+		for(int i = 0; i < sorted.length; i++)
+		{
+			String name = recorder == null ? null : nameOf(sorted[i]);
+			if(release(sorted[i]))
+			{
+				freed++;
+				if(recorder != null)
+					recorder.freed(sorted[i], name);
+			}
+			else
+				sorted[i] = Handle.NONE;
+		}
+		
+		for(int i = 0; i < sorted.length; i++)
+		{
+			if(sorted[i] == Handle.NONE)
+				continue;
+			
+			//Skip the ones that were merged into a block before them
+			int index = (int) Handle.index(sorted[i]);
+			if(slot(index) != null && slot(index).getSize() > 0 && !listed(index))
+				settle(index);
+		}
+		
+		journaled();
+		return freed;
+	}
+	
+	/**
+	 * Gets the name of the Process an allocated block belongs to
+	 * @param handle handle of the block
+	 * @return the name, null if the block has no Process or the handle is not an allocated block
+	 */
+	private String nameOf(long handle)
+	{
+		if(handle < 0 || Handle.index(handle) >= numChunks)
+			return null;
+		
+		Slot s = slot((int) Handle.index(handle));
+		if(s == null || s.isHole() || s.getSize() != Handle.chunks(handle) || s.getProcess() == BLOCK)
+			return null;
+		
+		return s.getProcess().getName();
+	}
+	
+	/**
+	 * Gets the handle of the block of a named Process
+	 * @param name name of the Process
+	 * @return handle of its block, Handle.NONE if there is no Process by that name
+	 */
+	long handleOf(String name)
+	{
+		Integer i = processes.get(name);
+		if(i == null)
+			return Handle.NONE;
+		
+		return Handle.encode(i, Integer.numberOfTrailingZeros(slot(i).getSize()));
+	}
+	
+	/**
+	 * Empties an allocated block without merging it or putting it on a free list.
+	 * If the block belongs to a named Process, the Process is removed as well.
+	 * @param handle handle of the block
+	 * @return true if successful, false if the handle is not an allocated block
+	 */
+	private boolean release(long handle)
+	{
+		if(handle < 0 || Handle.index(handle) >= numChunks)
+			return false;
+		
+		int index = (int) Handle.index(handle);
+		Slot s = slot(index);
+		
+		//Must be the start of an allocated block of the same size
+		if(s == null || s.isHole() || s.getSize() != Handle.chunks(handle))
+			return false;
+		
+		if(s.getProcess() != BLOCK)
+			processes.remove(s.getProcess().getName());
+		
+		vacate(index);
+		return true;
+	}
+	
+	/**
+	 * Gets the memory of an allocated block in arena mode. The buffer is a view of
+	 * the arena (nothing is copied) that starts at the block's first byte and
+	 * holds exactly the block's size. It must not be used after the block is freed.
+	 * @param handle handle of the block
+	 * @return the block's memory, null if the handle is not an allocated block
+	 * @throws IllegalStateException if the MMU is not in arena mode
+	 */
+	public ByteBuffer buffer(long handle)
+	{
+		if(arena == null)
+			throw new IllegalStateException("MMU has no arena");
+		
+		if(handle < 0 || Handle.index(handle) >= numChunks)
+			return null;
+		
+		int index = (int) Handle.index(handle);
+		Slot s = slot(index);
+		if(s == null || s.isHole() || s.getSize() != Handle.chunks(handle))
+			return null;
+		
+		ByteBuffer view = arena.duplicate();
+		view.limit((index + s.getSize()) * chunkSize);
+		view.position(index * chunkSize);
+		return view.slice();
+	}
+	
+	/**
+	 * @return true if the MMU owns memory behind its chunks
+	 */
+	public boolean hasArena()
+	{
+		return arena != null;
+	}
+	
+	/**
+	 * Takes the smallest hole that is big enough off its free list, and keeps
+	 * splitting it until it is the size needed.
+	 * @param needed order of the block needed
+	 * @return index of the block, -1 if there is no hole big enough
+	 */
+	private int take(int needed)
+	{
+		int k = smallestHole(needed);
+		if(k > maxOrder)
+			return -1;
+		
+		int index = freeLists[k];
+		unlink(index);
+		
+		//Eager merging would have joined this hole with its buddy, only to split it again now
+		if(k == needed && k < maxOrder && isFreeBuddy(index))
+			splitsAvoided++;
+		
+		//process will fit in slot, lets make smaller slots so the process fits better
+		while(k > needed){
+			push(split(index));
+			k--;
+		}
+		
+		return index;
+	}
+	
+	/**
+	 * Cuts a chunk in half. The second half becomes a hole that is not on any free list.
+	 * @param index index of the chunk
+	 * @return index of the second half
+	 */
+	private int split(int index)
+	{
+		Slot s = slot(index);
+		s.cutSize();
+		s.setPoint(s.getPoint()*2);
+		//Need a slot to represent the hole that was created, reusing the
+		//one left behind by an earlier merge if there is one
+		int j = index+s.getSize();
+		if(slot(j) == null)
+			setSlot(j, new Slot(null, s.getSize(), s.getPoint()+1, s.getPoint()));
+		else
+		{
+			slot(j).removeProcess();
+			slot(j).setSize(s.getSize());
+			slot(j).setPoint(s.getPoint()+1);
+			slot(j).setRef(s.getPoint());
+		}
+		s.setRef(s.getPoint()+1);
+		return j;
+	}
+	
+	/**
+	 * Cuts a chunk that is off the free lists into blocks of one order and allocates
+	 * the first few of them to batch requests. Whatever is left over goes back on
+	 * the free lists as the largest holes possible.
+	 * @param index index of the chunk
+	 * @param k order of the chunk
+	 * @param needed order of the blocks
+	 * @param count number of blocks to allocate, at most 2^(k - needed)
+	 * @param sizes bytes asked for by each batch request
+	 * @param requests batch requests, by order
+	 * @param at first of the requests to give a block to
+	 * @param handles handles of the batch requests
+	 */
+	private void carve(int index, int k, int needed, int count, int[] sizes, int[] requests, int at, long[] handles)
+	{
+		if(k == needed)
+		{
+			use(index, BLOCK, sizes[requests[at]]);
+			handles[requests[at]] = Handle.encode(index, needed);
+			return;
+		}
+		
+		int half = 1 << (k - 1 - needed);
+		int right = split(index);
+		carve(index, k - 1, needed, Math.min(count, half), sizes, requests, at, handles);
+		
+		if(count > half)
+			carve(right, k - 1, needed, count - half, sizes, requests, at + half, handles);
+		else
+			push(right);
 	}
 	
 	/**
@@ -96,93 +657,521 @@ public class MMU
 	 */
 	public boolean deallocate(String name)
 	{
-		//Will loop through the memory till it finds the correct process
+		if(recorder != null)
+			recorder.deallocated(name);
+		
+		//Finds the chunk holding the process
+		Integer i = processes.remove(name);
+		if(i == null)
+			return false;
+		
+		//Removes process
+		vacate(i);
+		//Tries to merge the empty chunk with a neighboring chunk
+		settle(i);
+		journaled();
+		return true;
+	}
+	
+	/**
+	 * Sets the number of pairs of buddy holes of each order that are left
+	 * unmerged when freeing (lazy merging). Under heavy churn a freed block is
+	 * then often allocated again as it is, where merging it would only have it
+	 * split again. Only pairs left apart count, not holes whose buddy is in use,
+	 * so a fragmented heap still merges lazily. Holes are merged once an order
+	 * has as many pairs as the threshold, when an allocation finds no hole big
+	 * enough, or when coalesce() is called.
+	 * @param threshold pairs per order to leave unmerged, 0 to always merge (the default)
+	 */
+	public void setLazyThreshold(int threshold)
+	{
+		lazyThreshold = threshold;
+		if(threshold == 0)
+			coalesce();
+	}
+	
+	/**
+	 * Merges every pair of holes that lazy merging left apart. Can be run as a
+	 * background sweep, by whichever thread owns the MMU.
+	 * @return the number of merges done
+	 */
+	public int coalesce()
+	{
+		int merges = 0;
+		
+		//Merged holes move up an order, where they are looked at again
+		for(int k = 0; k < maxOrder; k++)
+		{
+			int i = freeLists[k];
+			while(i != -1)
+			{
+				int next = slot(i).getNext();
+				if(isFreeBuddy(i))
+				{
+					if(next == (i ^ slot(i).getSize()))
+						next = slot(next).getNext();
+					unlink(i);
+					merge(i);
+					merges++;
+				}
+				i = next;
+			}
+		}
+		
+		return merges;
+	}
+	
+	/**
+	 * @return the bytes asked for by all of the allocated blocks
+	 */
+	public long getRequestedBytes()
+	{
+		return requestedBytes;
+	}
+	
+	/**
+	 * @return the bytes in all of the allocated blocks, which are rounded up to 2^k chunks
+	 */
+	public long getReservedBytes()
+	{
+		return reservedBytes;
+	}
+	
+	/**
+	 * @return the bytes in holes
+	 */
+	public long getFreeBytes()
+	{
+		return holeChunks * chunkSize;
+	}
+	
+	/**
+	 * Gets the number of holes of one size
+	 * @param order the holes are 2^order chunks
+	 * @return number of holes, 0 if the order is bigger than the memory
+	 */
+	public int getFreeBlocks(int order)
+	{
+		return order >= 0 && order <= maxOrder ? freeCounts[order] : 0;
+	}
+	
+	/**
+	 * @return the size of the biggest hole in bytes, 0 if the memory is full
+	 */
+	public long getLargestFree()
+	{
+		if(holeOrders == 0)
+			return 0;
+		return (long) chunkSize << (31 - Integer.numberOfLeadingZeros(holeOrders));
+	}
+	
+	/**
+	 * Gets the internal fragmentation: the share of the allocated blocks that
+	 * was not asked for, because blocks are rounded up to 2^k chunks
+	 * @return 0 (no waste) to 1
+	 */
+	public double getInternalFragmentation()
+	{
+		return reservedBytes == 0 ? 0 : 1 - (double) requestedBytes / reservedBytes;
+	}
+	
+	/**
+	 * Gets the external fragmentation: the share of the free memory that is not
+	 * in the biggest hole, so can't be used by a single allocation
+	 * @return 0 (all free memory in one hole) to 1
+	 */
+	public double getExternalFragmentation()
+	{
+		long free = getFreeBytes();
+		return free == 0 ? 0 : 1 - (double) getLargestFree() / free;
+	}
+	
+	/**
+	 * Gives back the pages of Slots that lie wholly inside a hole, past its
+	 * first chunk. They only hold unused Slots, and are made again if the hole
+	 * is split that far down.
+	 * @return the number of pages given back
+	 */
+	public int trim()
+	{
+		int trimmed = 0;
 		int i = 0;
 		while(i < numChunks)
 		{
-			if(!memory[i].isHole() && memory[i].getProcess().getName().equals(name))
+			int size = slot(i).getSize();
+			if(slot(i).isHole() && size > 1 << PAGE_BITS)
 			{
-				//Removes process
-				memory[i].removeProcess();
-				//Tries to merge the empty chunk with a neighboring chunk
-				merge(i);
-				return true;
+				//A hole this big is page aligned, its first page holds its own Slot
+				for(int page = (i >>> PAGE_BITS) + 1; page < (i + size) >>> PAGE_BITS; page++)
+				{
+					if(pages[page] != null)
+					{
+						pages[page] = null;
+						trimmed++;
+					}
+				}
 			}
-			//Able to skip more memory this way
-			i += memory[i].getSize(); 
+			i += size;
 		}
 		
-		return false;
+		return trimmed;
 	}
 	
 	/**
-	 * Tries to merge two empty chunks of the same size that are buddies
-	 * @param index
-	 * @return true if merges, false if there is no merge or fails to merge
+	 * @return the number of pages of Slots that exist, each holds 2^10 chunks
 	 */
-	private boolean merge(int index)		//index or hole
+	public int getPagesInUse()
 	{
-		//If the chunk is the max size of memory, return false
-		if(index >= numChunks || index < 0 || memory[index].getSize() ==  numChunks)
-			return false;
+		int count = 0;
+		for(Slot[] page : pages)
+		{
+			if(page != null)
+				count++;
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * @return the number of allocations that lazy merging saved a split for
+	 */
+	public long getSplitsAvoided()
+	{
+		return splitsAvoided;
+	}
+	
+	/**
+	 * @return the number of merges that lazy merging left out when freeing
+	 */
+	public long getMergesAvoided()
+	{
+		return mergesAvoided;
+	}
+	
+	/**
+	 * Puts a freed chunk on its free list, merging it with its buddies first
+	 * unless lazy merging leaves it apart.
+	 * @param index index of a hole that is not on any free list
+	 */
+	private void settle(int index)
+	{
+		int k = order(slot(index).getSize());
 		
-		//Indexes past to the next different chunk
-		int a = memory[index].getSize();
+		if(lazyPairs[k] < lazyThreshold)
+		{
+			if(k < maxOrder && isFreeBuddy(index))
+				mergesAvoided++;
+			push(index);
+		}
+		else
+			merge(index);
+	}
+	
+	/**
+	 * Gets the smallest order that has a hole, merging lazily freed holes first
+	 * if there is none.
+	 * @param needed smallest order that is big enough
+	 * @return the order, more than maxOrder if there is no hole big enough
+	 */
+	private int smallestHole(int needed)
+	{
+		int k = needed;
+		while(k <= maxOrder && freeLists[k] == -1)
+			k++;
+		
+		if(k > maxOrder && lazyThreshold > 0 && coalesce() > 0)
+			return smallestHole(needed);
 		
-		//If it is within memory bounds, both chunks are empty, and are buddies
-		//then merge
-		if(index + a < numChunks && memory[index+a] != null && memory[index].isHole() && memory[index+a].isHole() 
-				&& (memory[index].getRef() == memory[index+a].getPoint())
-				&& (memory[index].getSize() == memory[index+a].getSize()))
+		return k;
+	}
+	
+	/**
+	 * Checks to see if the buddy of a chunk is a hole of the same size
+	 * @param index index of the chunk, which must not be the whole memory
+	 * @return true if the two could be merged
+	 */
+	private boolean isFreeBuddy(int index)
+	{
+		int buddy = index ^ slot(index).getSize();
+		return slot(buddy) != null && slot(buddy).isHole()
+				&& slot(buddy).getSize() == slot(index).getSize();
+	}
+	
+	/**
+	 * Merges an empty chunk with its buddy for as long as the buddy is an empty
+	 * chunk of the same size, then puts the resulting hole on its free list.
+	 * @param index index of a hole that is not on any free list
+	 * @return true if merges, false if there is no merge
+	 */
+	private boolean merge(int index)		//index or hole
+	{
+		boolean merged = false;
+		
+		//Stop once the chunk is the max size of memory
+		while(slot(index).getSize() < numChunks)
 		{
-			//Index doubles the chunk size
-			memory[index].doubleSize();
-			//Index cuts the index point
-			memory[index].setPoint(memory[index].getPoint()/2);
+			//Buddies only differ in the bit of their size
+			int buddy = index ^ slot(index).getSize();
 			
-			/*
-			 * Is the new index even or odd?
-			 * If even, point to the next memory chunk
-			 * If odd, point to the previous memory chunk
-			 */
-			setReference(index);
+			//Only merge if the buddy is an empty chunk of the same size
+			if(slot(buddy) == null || !slot(buddy).isHole()
+					|| slot(buddy).getSize() != slot(index).getSize())
+				break;
 			
-			memory[index+a] = null;
-			
-			//Can we merge again?
-			merge(index);
+			//The buddy is no longer a hole of its own
+			if(listed(buddy))
+				unlink(buddy);
 			
-			//Has merged
-			return true;
-		}
-		//If the next chunk isn't a buddy, check the previous chunk 
-		else if(index-a >= 0 && memory[index-a] != null && memory[index].isHole() && memory[index-a].isHole()
-				&& (memory[index].getRef() == memory[index-a].getPoint())
-				&& (memory[index].getSize() == memory[index-a].getSize()))
-		{
-			//Previous chunk doubles chunk size
-			memory[index-a].doubleSize();
-			//Previous index cuts index point
-			memory[index-a].setPoint(memory[index-a].getPoint()/2);
+			//The lower of the two chunks is the start of the merged chunk
+			int low = Math.min(index, buddy);
+			int high = Math.max(index, buddy);
 			
-			/*
-			 * Is the new index even or odd?
-			 * If even, point to the next memory chunk
-			 * If odd, point to the previous memory chunk
-			 */
-			setReference(index-a);
-			
-			memory[index] = null;
+			join(low, high);
 			
 			//Can we merge again?
-			merge(index-a);
-			
-			//Has merged
-			return true;
+			index = low;
+			merged = true;
 		}
 		
-		//Did not merge chunks
-		return false;
+		push(index);
+		return merged;
+	}
+	
+	/**
+	 * Grows an allocated chunk in place by joining it with the holes after it.
+	 * That only works if the chunk is the first half of each bigger block on the
+	 * way up, and every second half is a hole of its own.
+	 * @param index index of the chunk
+	 * @param k order of the chunk
+	 * @param needed order to grow to
+	 * @return true if the chunk grew, false if it was left as it was
+	 */
+	private boolean absorb(int index, int k, int needed)
+	{
+		for(int j = k; j < needed; j++)
+		{
+			int buddy = index + (1 << j);
+			if((index & (1 << j)) != 0 || slot(buddy) == null || !slot(buddy).isHole()
+					|| slot(buddy).getSize() != 1 << j)
+				return false;
+		}
+		
+		for(int j = k; j < needed; j++)
+		{
+			unlink(index + (1 << j));
+			join(index, index + (1 << j));
+		}
+		return true;
+	}
+	
+	/**
+	 * Joins a chunk with its buddy after it, which is off the free lists, into a
+	 * chunk of twice the size. The chunk keeps its process.
+	 * @param low index of the chunk
+	 * @param high index of its buddy
+	 */
+	private void join(int low, int high)
+	{
+		//Index doubles the chunk size
+		slot(low).doubleSize();
+		//Index cuts the index point
+		slot(low).setPoint(slot(low).getPoint()/2);
+		
+		/*
+		 * Is the new index even or odd?
+		 * If even, point to the next memory chunk
+		 * If odd, point to the previous memory chunk
+		 */
+		setReference(low);
+		
+		//The higher chunk is no longer the start of a chunk, its Slot is
+		//kept to be reused when the merged chunk is split again. Pages are
+		//kept too, so a block that is split and merged over and over creates
+		//nothing; trim() gives them back.
+		slot(high).setSize(0);
+	}
+	
+	/**
+	 * Gives the Process and memory of an allocated chunk to a chunk that is off
+	 * the free lists, then frees the first one.
+	 * @param index index of the allocated chunk
+	 * @param target index of the chunk it moves to
+	 * @param p Process for the new chunk
+	 * @param bytes bytes asked for
+	 */
+	private void move(int index, int target, Process p, int bytes)
+	{
+		Slot s = slot(index);
+		if(arena != null)
+		{
+			ByteBuffer from = arena.duplicate();
+			from.limit((index + Math.min(s.getSize(), slot(target).getSize())) * chunkSize);
+			from.position(index * chunkSize);
+			ByteBuffer to = arena.duplicate();
+			to.position(target * chunkSize);
+			to.put(from);
+		}
+		
+		//Emptied first, so a journal replays the free before the allocate
+		vacate(index);
+		use(target, p, bytes);
+		if(p != BLOCK)
+			processes.put(p.getName(), target);
+		
+		settle(index);
+	}
+	
+	/**
+	 * Gives an allocated chunk to its owner
+	 * @param index index of the chunk, which is not on any free list
+	 * @param p owner of the chunk
+	 * @param bytes bytes asked for
+	 */
+	private void use(int index, Process p, int bytes)
+	{
+		Slot s = slot(index);
+		s.setProcess(p);
+		s.setRequested(bytes);
+		requestedBytes += bytes;
+		reservedBytes += (long) s.getSize() * chunkSize;
+		
+		if(journal != null)
+			journal.allocated(index, order(s.getSize()), p == BLOCK ? null : p.getName(), bytes);
+	}
+	
+	/**
+	 * Lets the journal write what it gathered, once a request has left the MMU
+	 * consistent. The journal is only told about blocks while the request runs
+	 * and does no I/O then, so a failed write can't leave the MMU half changed.
+	 */
+	private void journaled()
+	{
+		if(journal != null)
+			journal.settled();
+	}
+	
+	/**
+	 * Empties an allocated chunk, without putting it on a free list
+	 * @param index index of the chunk
+	 */
+	private void vacate(int index)
+	{
+		Slot s = slot(index);
+		if(journal != null)
+			journal.freed(index);
+		
+		requestedBytes -= s.getRequested();
+		reservedBytes -= (long) s.getSize() * chunkSize;
+		s.setRequested(0);
+		s.removeProcess();
+	}
+	
+	/**
+	 * Puts a hole at the front of the free list of its order
+	 * @param index index of the hole
+	 */
+	private void push(int index)
+	{
+		int k = order(slot(index).getSize());
+		if(paired(index))
+			lazyPairs[k]++;
+		
+		slot(index).setPrev(-1);
+		slot(index).setNext(freeLists[k]);
+		if(freeLists[k] != -1)
+			slot(freeLists[k]).setPrev(index);
+		freeLists[k] = index;
+		freeCounts[k]++;
+		if(holeBits != null)
+			holeBits.set(k, index);
+		holeOrders |= 1 << k;
+		holeChunks += slot(index).getSize();
+	}
+	
+	/**
+	 * Takes a hole out of the free list of its order
+	 * @param index index of the hole
+	 */
+	private void unlink(int index)
+	{
+		Slot s = slot(index);
+		if(paired(index))
+			lazyPairs[order(s.getSize())]--;
+		
+		if(s.getPrev() != -1)
+			slot(s.getPrev()).setNext(s.getNext());
+		else
+			freeLists[order(s.getSize())] = s.getNext();
+		
+		if(s.getNext() != -1)
+			slot(s.getNext()).setPrev(s.getPrev());
+		
+		s.setNext(-1);
+		s.setPrev(-1);
+		freeCounts[order(s.getSize())]--;
+		if(holeBits != null)
+			holeBits.clear(order(s.getSize()), index);
+		if(freeLists[order(s.getSize())] == -1)
+			holeOrders &= ~(1 << order(s.getSize()));
+		holeChunks -= s.getSize();
+	}
+	
+	/**
+	 * Checks to see if the buddy of a hole is a hole of the same size on its
+	 * free list, which only happens when lazy merging left the two apart
+	 * @param index index of the hole
+	 * @return true if the buddy is listed and the two could be merged
+	 */
+	private boolean paired(int index)
+	{
+		return slot(index).getSize() < numChunks && isFreeBuddy(index)
+				&& listed(index ^ slot(index).getSize());
+	}
+	
+	/**
+	 * Checks to see if a hole is on its free list. Only a hole being merged
+	 * or freed in a batch is not.
+	 * @param index index of the hole
+	 * @return true if it is on the free list of its order
+	 */
+	private boolean listed(int index)
+	{
+		return slot(index).getPrev() != -1 || freeLists[order(slot(index).getSize())] == index;
+	}
+	
+	/**
+	 * Gets the order of a chunk, the power of 2 of its size
+	 * @param chunks size in chunks (2^n)
+	 * @return n
+	 */
+	private static int order(int chunks)
+	{
+		return Integer.numberOfTrailingZeros(chunks);
+	}
+	
+	/**
+	 * Gets the Slot of a chunk
+	 * @param index index of the chunk
+	 * @return the Slot, null if no block has ever started at the chunk
+	 */
+	private Slot slot(int index)
+	{
+		Slot[] page = pages[index >>> PAGE_BITS];
+		return page == null ? null : page[index & ((1 << PAGE_BITS) - 1)];
+	}
+	
+	/**
+	 * Sets the Slot of a chunk, creating its page if it is the first one
+	 */
+	private void setSlot(int index, Slot s)
+	{
+		Slot[] page = pages[index >>> PAGE_BITS];
+		if(page == null)
+		{
+			page = new Slot[Math.min(1 << PAGE_BITS, numChunks)];
+			pages[index >>> PAGE_BITS] = page;
+		}
+		page[index & ((1 << PAGE_BITS) - 1)] = s;
 	}
 	
 	/**
@@ -193,56 +1182,216 @@ public class MMU
 	 */
 	private boolean setReference(int index)
 	{
-		if(index < 0 || index >= numChunks || memory[index] == null)
+		if(index < 0 || index >= numChunks || slot(index) == null)
 			return false;
 		
-		int size = memory[index].getSize();
+		int size = slot(index).getSize();
 		
-		if(memory[index].getPoint() % 2 == 1)
+		if(slot(index).getPoint() % 2 == 1)
 		{
 			if(numChunks > index-size && index-size >= 0)
 			{
-				memory[index].setRef(memory[index].getPoint()-1);
+				slot(index).setRef(slot(index).getPoint()-1);
 				return true;
 			}
 		}
-		else if(memory[index].getPoint() % 2 == 0)
+		else if(slot(index).getPoint() % 2 == 0)
 		{
 			if(numChunks > index+size && index+size >= 0)
 			{
-				memory[index].setRef(memory[index].getPoint()+1);
+				slot(index).setRef(slot(index).getPoint()+1);
 				return true;
 			}
 		}
 		
-		memory[index].setRef(memory[index].getPoint());
+		slot(index).setRef(slot(index).getPoint());
 		return false;
 	}
 	
+	/**
+	 * @return the minimum chunk size, in bytes
+	 */
+	public int getChunkSize()
+	{
+		return chunkSize;
+	}
+	
+	/**
+	 * @return the total memory size, in bytes
+	 */
+	public int getMemorySize()
+	{
+		return memorySize;
+	}
+	
 	public String getProcess(String name)
 	{
-		int i = 0;
+		Integer i = processes.get(name);
 		
-		while(i < numChunks)
+		if(i == null)
+			return null;
+		
+		return slot(i).getProcess().toString();
+	}
+	
+	/**
+	 * Writes the state of the MMU to a stream, in a compact binary form that
+	 * restore reads back. It holds the sizes, one bit for every node of the buddy
+	 * tree (split or not, in pre-order) and a table of the allocated blocks with
+	 * the bytes asked for and the Process name. The memory of an arena is not
+	 * part of it.
+	 * @param out stream to write to, it is flushed but not closed
+	 * @throws IOException if the stream can't be written
+	 */
+	public void snapshot(OutputStream out) throws IOException
+	{
+		//Tree bits and allocated blocks, both found in one walk of the tree
+		BitSet split = new BitSet();
+		ArrayList<Integer> used = new ArrayList<Integer>();
+		int nodes = walk(0, numChunks, 0, split, used);
+		long[] bits = Arrays.copyOf(split.toLongArray(), (nodes + 63) / 64);
+		
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+		data.writeLong(SNAPSHOT_MAGIC);
+		data.writeInt(SNAPSHOT_VERSION);
+		data.writeInt(memorySize);
+		data.writeInt(chunkSize);
+		data.writeBoolean(arena != null);
+		data.writeInt(lazyThreshold);
+		
+		data.writeInt(nodes);
+		for(long word : bits)
+			data.writeLong(word);
+		
+		data.writeInt(used.size());
+		for(int index : used)
 		{
-			if(!memory[i].isHole() && memory[i].getProcess().getName().equals(name))
-			{
-				return memory[i].getProcess().toString();
-			}
+			Slot s = slot(index);
+			data.writeInt(index);
+			data.writeInt(s.getRequested());
+			data.writeBoolean(s.getProcess() != BLOCK);
+			if(s.getProcess() != BLOCK)
+				data.writeUTF(s.getProcess().getName());
+		}
+		
+		data.flush();
+	}
+	
+	/**
+	 * Creates an MMU from a snapshot. The Slots and free lists are built straight
+	 * from the tree bits, without allocating anything, so it takes time in
+	 * proportion to the number of blocks and not the size of the memory.
+	 * @param in stream to read from, it is not closed
+	 * @return the MMU as it was when the snapshot was written
+	 * @throws IOException if the stream can't be read or is not an MMU snapshot
+	 */
+	public static MMU restore(InputStream in) throws IOException
+	{
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+		if(data.readLong() != SNAPSHOT_MAGIC)
+			throw new IOException("Not an MMU snapshot");
+		int version = data.readInt();
+		if(version != SNAPSHOT_VERSION)
+			throw new IOException("Unsupported snapshot version " + version);
+		
+		int memSize = data.readInt();
+		int chunkSize = data.readInt();
+		if(memSize <= 0 || chunkSize <= 0 || Integer.bitCount(memSize) != 1
+				|| Integer.bitCount(chunkSize) != 1 || chunkSize > memSize)
+			throw new IOException("Snapshot is corrupt");
+		
+		MMU mmu = new MMU(memSize, chunkSize, data.readBoolean());
+		mmu.lazyThreshold = data.readInt();
+		
+		int nodes = data.readInt();
+		if(nodes <= 0 || nodes >= 2 * mmu.numChunks)
+			throw new IOException("Snapshot is corrupt");
+		long[] bits = new long[(nodes + 63) / 64];
+		for(int w = 0; w < bits.length; w++)
+			bits[w] = data.readLong();
+		
+		//Start over from nothing and lay out the blocks as holes
+		mmu.unlink(0);
+		if(mmu.build(0, mmu.numChunks, BitSet.valueOf(bits), 0) != nodes)
+			throw new IOException("Snapshot is corrupt");
+		
+		int blocks = data.readInt();
+		for(int b = 0; b < blocks; b++)
+		{
+			int index = data.readInt();
+			int requested = data.readInt();
+			Process p = data.readBoolean() ? new Process(data.readUTF(), requested) : BLOCK;
 			
-			i += memory[i].getSize();
+			Slot s = index < 0 || index >= mmu.numChunks ? null : mmu.slot(index);
+			if(s == null || s.getSize() == 0 || !mmu.listed(index)
+					|| (p != BLOCK && mmu.processes.containsKey(p.getName())))
+				throw new IOException("Snapshot is corrupt");
+			
+			mmu.unlink(index);
+			mmu.use(index, p, requested);
+			if(p != BLOCK)
+				mmu.processes.put(p.getName(), index);
+		}
+		
+		return mmu;
+	}
+	
+	/**
+	 * Sets the tree bits of a node and everything under it, and notes the
+	 * allocated blocks in address order
+	 * @param index index of the node's first chunk
+	 * @param size size of the node in chunks
+	 * @param node number of the node in pre-order
+	 * @param split tree bits, set for each node that is split
+	 * @param used indexes of the allocated blocks
+	 * @return number of the node after this one and everything under it
+	 */
+	private int walk(int index, int size, int node, BitSet split, ArrayList<Integer> used)
+	{
+		Slot s = slot(index);
+		if(s.getSize() < size)
+		{
+			split.set(node);
+			node = walk(index, size / 2, node + 1, split, used);
+			return walk(index + size / 2, size / 2, node, split, used);
+		}
+		
+		if(!s.isHole())
+			used.add(index);
+		return node + 1;
+	}
+	
+	/**
+	 * Creates the Slots of a node and everything under it from tree bits, every
+	 * block a hole on its free list
+	 * @param index index of the node's first chunk
+	 * @param size size of the node in chunks
+	 * @param split tree bits, set for each node that is split
+	 * @param node number of the node in pre-order
+	 * @return number of the node after this one and everything under it
+	 */
+	private int build(int index, int size, BitSet split, int node)
+	{
+		if(split.get(node) && size > 1)
+		{
+			node = build(index, size / 2, split, node + 1);
+			return build(index + size / 2, size / 2, split, node);
 		}
 		
-		return null;
+		//Points and buddy references as split would have left them
+		int point = index / size;
+		setSlot(index, new Slot(null, size, point, size == numChunks ? point : point ^ 1));
+		push(index);
+		return node + 1;
 	}
 	
 	public String toString(){
-		int size = memory.length;
+		int size = numChunks;
 		String content ="This piece of memory of size "+memorySize+" bytes contains "+numChunks+ " chunks"+"\n";
 		int i =0;
 		while(i<size){
-			content += memory[i] + "\n";
-			i += memory[i].getSize();
+			content += slot(i) + "\n";
+			i += slot(i).getSize();
 		}
 
 		return content;
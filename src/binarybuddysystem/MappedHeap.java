@@ -0,0 +1,234 @@
+package binarybuddysystem;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A persistent buddy heap kept in a memory-mapped file.
+ *
+ * The file holds a header, the complete state of a BitmapMMU and the managed
+ * memory itself, each mapped straight into the process. Every allocate and
+ * free updates the mapped state in place, so opening the file again gives
+ * back all of the allocations without replaying anything, however big the
+ * heap is. Blocks are handed out as handles (see Handle) and their memory is
+ * reached through buffer(handle).
+ *
+ * Changes reach the page cache right away and the disk on force() or close().
+ * A crash of the machine between the two can leave the state torn.
+ */
+public class MappedHeap implements BuddyAllocator, Closeable
+{
+	private static final long MAGIC = 0x4255445948454150L;	//"BUDYHEAP"
+	private static final int VERSION = 1;
+	private static final long ORDER_MARK = 0x0102030405060708L;
+	private static final int HEADER = 64;			//Header bytes, the state starts after them
+	private static final int PAGE = 4096;
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private MappedByteBuffer meta;		//Header and MMU state
+	private MappedByteBuffer data;		//The managed memory
+	private BitmapMMU mmu;
+
+	private int chunkSize;
+	private int memorySize;
+
+	/**
+	 * Opens a heap file, creating it with the given sizes if it doesn't exist.
+	 * @param path file holding the heap
+	 * @param memSize total memory size in bytes (2^n)
+	 * @param chunkSize minimum chunk size in bytes (2^k)
+	 * @throws IOException if the file can't be mapped, or it holds a heap of other sizes
+	 */
+	public MappedHeap(File path, int memSize, int chunkSize) throws IOException
+	{
+		this.memorySize = memSize;
+		this.chunkSize = chunkSize;
+		boolean restore = path.length() > 0;
+
+		file = new RandomAccessFile(path, "rw");
+		channel = file.getChannel();
+
+		try
+		{
+			if(restore)
+			{
+				map(readHeader());
+				if(memorySize != memSize || this.chunkSize != chunkSize)
+					throw new IOException("Heap " + path + " has memory size " + memorySize
+							+ " and chunk size " + this.chunkSize);
+			}
+			else
+			{
+				map(BitmapMMU.stateWords(memSize, chunkSize));
+				writeHeader();
+			}
+		}
+		catch(IOException | RuntimeException e)
+		{
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens an existing heap file with the sizes it was created with.
+	 * @param path file holding the heap
+	 * @throws IOException if the file can't be mapped or is not a heap
+	 */
+	public MappedHeap(File path) throws IOException
+	{
+		if(!path.isFile())
+			throw new IOException("No heap at " + path);
+
+		file = new RandomAccessFile(path, "rw");
+		channel = file.getChannel();
+
+		try
+		{
+			map(readHeader());
+		}
+		catch(IOException | RuntimeException e)
+		{
+			file.close();
+			throw e;
+		}
+	}
+
+	public long allocate(int bytes)
+	{
+		return mmu.allocate(bytes);
+	}
+
+	public boolean free(long handle)
+	{
+		return mmu.free(handle);
+	}
+
+	public int getChunkSize()
+	{
+		return chunkSize;
+	}
+
+	public int getMemorySize()
+	{
+		return memorySize;
+	}
+
+	/**
+	 * Gets the memory of an allocated block. The buffer is a view of the mapped
+	 * file (nothing is copied) that holds exactly the block's size.
+	 * @param handle handle of the block
+	 * @return the block's memory, null if the handle is not an allocated block
+	 */
+	public ByteBuffer buffer(long handle)
+	{
+		if(handle < 0 || Handle.index(handle) >= memorySize / chunkSize)
+			return null;
+
+		int index = (int) Handle.index(handle);
+		if(mmu.getSize(index) != Handle.chunks(handle) || mmu.isHole(index))
+			return null;
+
+		ByteBuffer view = data.duplicate();
+		view.limit((index + mmu.getSize(index)) * chunkSize);
+		view.position(index * chunkSize);
+		return view.slice();
+	}
+
+	/**
+	 * Writes the state and memory of the heap to disk
+	 */
+	public void force()
+	{
+		meta.force();
+		data.force();
+	}
+
+	/**
+	 * Writes the heap to disk and closes the file. The heap must not be used
+	 * afterwards.
+	 */
+	public void close() throws IOException
+	{
+		force();
+		file.close();
+	}
+
+	public String toString()
+	{
+		return mmu.toString();
+	}
+
+	/**
+	 * Maps the state and the memory and sets up the MMU on top of them.
+	 * The file grows to fit if it is new.
+	 * @param stateWords number of longs in the MMU state
+	 */
+	private void map(int stateWords) throws IOException
+	{
+		//Memory starts on its own page, so blocks are aligned like their chunk size
+		long metaBytes = HEADER + 8L * stateWords;
+		long dataStart = roundUp(metaBytes, Math.max(PAGE, chunkSize));
+
+		meta = channel.map(FileChannel.MapMode.READ_WRITE, 0, metaBytes);
+		data = channel.map(FileChannel.MapMode.READ_WRITE, dataStart, memorySize);
+		meta.order(ByteOrder.nativeOrder());
+
+		ByteBuffer state = meta.duplicate().order(ByteOrder.nativeOrder());
+		state.position(HEADER);
+		boolean restore = meta.getLong(0) == MAGIC;
+		mmu = new BitmapMMU(memorySize, chunkSize, state.slice().order(ByteOrder.nativeOrder()).asLongBuffer(),
+				restore);
+	}
+
+	/**
+	 * Reads the sizes of an existing heap from its header
+	 * @return number of longs in the MMU state
+	 */
+	private int readHeader() throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.nativeOrder());
+		if(channel.read(header, 0) != HEADER || header.getLong(0) != MAGIC)
+			throw new IOException("Not a heap file");
+		if(header.getLong(8) != ORDER_MARK)
+			throw new IOException("Heap file was written with another byte order");
+		if(header.getInt(16) != VERSION)
+			throw new IOException("Unsupported heap version " + header.getInt(16));
+
+		memorySize = header.getInt(20);
+		chunkSize = header.getInt(24);
+		int stateWords = header.getInt(28);
+		if(stateWords != BitmapMMU.stateWords(memorySize, chunkSize))
+			throw new IOException("Heap header is corrupt");
+
+		return stateWords;
+	}
+
+	/**
+	 * Writes the header of a new heap. The magic number goes last, so a heap
+	 * that was never fully created isn't mistaken for one.
+	 */
+	private void writeHeader()
+	{
+		meta.putLong(8, ORDER_MARK);
+		meta.putInt(16, VERSION);
+		meta.putInt(20, memorySize);
+		meta.putInt(24, chunkSize);
+		meta.putInt(28, BitmapMMU.stateWords(memorySize, chunkSize));
+		meta.force();
+		meta.putLong(0, MAGIC);
+		meta.force();
+	}
+
+	private static long roundUp(long value, long to)
+	{
+		return (value + to - 1) / to * to;
+	}
+}
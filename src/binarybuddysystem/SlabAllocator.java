@@ -0,0 +1,227 @@
+package binarybuddysystem;
+
+import java.util.Arrays;
+
+/**
+ * Serves requests smaller than a chunk out of slabs, blocks of the buddy
+ * allocator underneath that are cut into objects of one size class.
+ *
+ * The size classes are every multiple of 16 bytes below the chunk size. Each
+ * slab keeps a bitmap of its objects in use, and the slabs of each class that
+ * still have room are on a list, so a small allocation takes the first such
+ * slab and the first clear bit in its bitmap. A slab is given back to the
+ * buddy allocator as soon as its last object is freed. Requests of a chunk or
+ * more go straight to the buddy allocator.
+ *
+ * Objects are handed out as handles that have SLAB_BIT set, which keeps them
+ * apart from the block handles of the allocator underneath (see Handle). Like
+ * the MMU, it is not thread safe.
+ */
+public class SlabAllocator implements BuddyAllocator
+{
+	/** Set in the handles of objects that live in a slab */
+	public static final long SLAB_BIT = 1L << 62;
+
+	private static final int GRAIN = 16;			//Size classes are multiples of this
+	private static final int OBJECT_BITS = 20;		//Handle bits that hold the object's number
+
+	private BuddyAllocator buddy;
+	private int slabSize;
+	private int slabShift;				//log2 of the chunks per slab
+
+	private Slab[] slabs = new Slab[16];	//Slab starting at each slab sized piece of memory
+	private Slab[] partial;				//First slab with room of each class, null if none
+	private int slabCount;
+
+	/**
+	 * constructor for SlabAllocator
+	 * @param buddy allocator the slabs are taken from
+	 * @param slabSize bytes per slab (2^n, at least the chunk size)
+	 */
+	public SlabAllocator(BuddyAllocator buddy, int slabSize)
+	{
+		int chunkSize = buddy.getChunkSize();
+		if(Integer.bitCount(slabSize) != 1 || slabSize < chunkSize || slabSize / GRAIN >= 1 << OBJECT_BITS)
+			throw new IllegalArgumentException("Slab size must be 2^n, at least the chunk size and at most 16 MB");
+
+		this.buddy = buddy;
+		this.slabSize = slabSize;
+		slabShift = Integer.numberOfTrailingZeros(slabSize / chunkSize);
+		partial = new Slab[Math.max(0, (chunkSize - 1) / GRAIN)];
+	}
+
+	public long allocate(int bytes)
+	{
+		if(bytes <= 0)
+			return Handle.NONE;
+
+		int c = (bytes - 1) / GRAIN;
+		if(c >= partial.length)
+			return buddy.allocate(bytes);
+
+		Slab s = partial[c];
+		if(s == null)
+		{
+			s = newSlab(c);
+			if(s == null)
+				return Handle.NONE;
+		}
+
+		//First object that is not in use
+		int w = 0;
+		while(s.used[w] == -1L)
+			w++;
+		int object = (w << 6) + Long.numberOfTrailingZeros(~s.used[w]);
+
+		s.used[w] |= 1L << object;
+		if(++s.count == s.capacity)
+			unlink(s);
+
+		return SLAB_BIT | ((long) s.slot << OBJECT_BITS) | object;
+	}
+
+	public boolean free(long handle)
+	{
+		if(handle < 0)
+			return false;
+		if((handle & SLAB_BIT) == 0)
+			return buddy.free(handle);
+
+		long slot = (handle & ~SLAB_BIT) >>> OBJECT_BITS;
+		int object = (int) (handle & ((1 << OBJECT_BITS) - 1));
+		if(slot >= slabs.length || slabs[(int) slot] == null)
+			return false;
+
+		Slab s = slabs[(int) slot];
+		if(object >= s.capacity || (s.used[object >>> 6] & (1L << object)) == 0)
+			return false;
+
+		s.used[object >>> 6] &= ~(1L << object);
+		if(s.count-- == s.capacity)
+			push(s);
+
+		//Empty slabs go back to the buddy allocator right away
+		if(s.count == 0)
+		{
+			unlink(s);
+			slabs[s.slot] = null;
+			slabCount--;
+			buddy.free(s.block);
+		}
+		return true;
+	}
+
+	/**
+	 * Gets where an object or block starts in the memory of the allocator underneath
+	 * @param handle handle of an allocated object or block
+	 * @return offset of its first byte, in bytes
+	 */
+	public long address(long handle)
+	{
+		if((handle & SLAB_BIT) == 0)
+			return Handle.index(handle) * buddy.getChunkSize();
+
+		Slab s = slabs[(int) ((handle & ~SLAB_BIT) >>> OBJECT_BITS)];
+		return Handle.index(s.block) * buddy.getChunkSize() + (handle & ((1 << OBJECT_BITS) - 1)) * s.objectSize;
+	}
+
+	public int getChunkSize()
+	{
+		return buddy.getChunkSize();
+	}
+
+	public int getMemorySize()
+	{
+		return buddy.getMemorySize();
+	}
+
+	/**
+	 * @return the number of slabs taken from the buddy allocator
+	 */
+	public int getSlabs()
+	{
+		return slabCount;
+	}
+
+	/**
+	 * Takes a new slab for a size class from the buddy allocator
+	 * @param c size class, objects are (c + 1) * 16 bytes
+	 * @return the slab, null if the buddy allocator is full
+	 */
+	private Slab newSlab(int c)
+	{
+		long block = buddy.allocate(slabSize);
+		if(block == Handle.NONE)
+			return null;
+
+		int slot = (int) (Handle.index(block) >>> slabShift);
+		if(slot >= slabs.length)
+			slabs = Arrays.copyOf(slabs, Math.max(slot + 1, slabs.length * 2));
+
+		Slab s = new Slab(block, slot, c);
+		slabs[slot] = s;
+		slabCount++;
+		push(s);
+		return s;
+	}
+
+	private void push(Slab s)
+	{
+		s.prev = null;
+		s.next = partial[s.sizeClass];
+		if(s.next != null)
+			s.next.prev = s;
+		partial[s.sizeClass] = s;
+	}
+
+	private void unlink(Slab s)
+	{
+		if(s.prev != null)
+			s.prev.next = s.next;
+		else
+			partial[s.sizeClass] = s.next;
+		if(s.next != null)
+			s.next.prev = s.prev;
+
+		s.prev = null;
+		s.next = null;
+	}
+
+	public String toString()
+	{
+		StringBuilder content = new StringBuilder(slabCount + " slabs of " + slabSize + " bytes\n");
+		for(Slab s : slabs)
+		{
+			if(s != null)
+				content.append(Handle.toString(s.block)).append(": ").append(s.count).append('/')
+						.append(s.capacity).append(" objects of ").append(s.objectSize).append(" bytes\n");
+		}
+
+		return content.toString();
+	}
+
+	/**
+	 * A block of the buddy allocator cut into objects of one size
+	 */
+	private class Slab
+	{
+		private long block;			//Handle of the block in the buddy allocator
+		private int slot;			//Index in slabs
+		private int sizeClass;
+		private int objectSize;
+		private int capacity;		//Number of objects that fit
+		private int count;			//Number of objects in use
+		private long[] used;		//Bit set for each object in use
+		private Slab prev, next;	//Neighbors on the list of slabs with room
+
+		private Slab(long block, int slot, int sizeClass)
+		{
+			this.block = block;
+			this.slot = slot;
+			this.sizeClass = sizeClass;
+			objectSize = (sizeClass + 1) * GRAIN;
+			capacity = slabSize / objectSize;
+			used = new long[(capacity + 63) >>> 6];
+		}
+	}
+}
@@ -7,6 +7,9 @@ public class Slot
     private int point;				//The chunk's indexing point
     private int ref;     //Points to buddy chunk, which must be the same size
                                     //and point back to this chunk (neighboring)
+    private int next;				//Next hole of the same size in the MMU's free list (-1 if none)
+    private int prev;				//Previous hole of the same size in the MMU's free list (-1 if none)
+    private int requested;			//Bytes asked for by the process in the Chunk
     
     /**
 	 * Instantiates a new, blank Chunk
@@ -17,6 +20,8 @@ public class Slot
         size = 0;
         ref = 0;
         point = 0;
+        next = -1;
+        prev = -1;
     }
     
     /**
@@ -32,6 +37,8 @@ public class Slot
         size = chunkSize;
         ref = reference;
         this.point = point;
+        next = -1;
+        prev = -1;
     }
     
     /**
@@ -145,6 +152,59 @@ public class Slot
     	point = index;
     }
     
+    /**
+	 * Gets the index of the next hole in this Chunk's free list
+	 * @return index of the next hole, -1 if this is the last one
+	 */
+    public int getNext()
+    {
+    	return next;
+    }
+    
+    /**
+	 * Sets the index of the next hole in this Chunk's free list
+	 * @param index index of the next hole, -1 if none
+	 */
+    public void setNext(int index)
+    {
+    	next = index;
+    }
+    
+    /**
+	 * Gets the index of the previous hole in this Chunk's free list
+	 * @return index of the previous hole, -1 if this is the first one
+	 */
+    public int getPrev()
+    {
+    	return prev;
+    }
+    
+    /**
+	 * Sets the index of the previous hole in this Chunk's free list
+	 * @param index index of the previous hole, -1 if none
+	 */
+    public void setPrev(int index)
+    {
+    	prev = index;
+    }
+    
+    /**
+	 * Gets the number of bytes asked for by the process in this Chunk
+	 * @return bytes requested, at most the Chunk size in bytes
+	 */
+    public int getRequested()
+    {
+    	return requested;
+    }
+    
+    /**
+	 * Sets the number of bytes asked for by the process in this Chunk
+	 * @param bytes bytes requested
+	 */
+    public void setRequested(int bytes)
+    {
+    	requested = bytes;
+    }
     
     /**
      * @return returns a String denoting this chunks current state
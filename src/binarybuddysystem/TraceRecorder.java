@@ -0,0 +1,221 @@
+package binarybuddysystem;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+
+/**
+ * Records every request made to an MMU to a compact binary trace, so that a
+ * real workload can be replayed offline against the allocator (see
+ * TraceReplayer).
+ *
+ * Each record is a type, the nanoseconds since the record before it and its
+ * arguments, with numbers written as varints. Blocks allocated by handle are
+ * given ids in the order they were asked for, and frees name the id, so the
+ * trace doesn't depend on where the blocks were placed. Batches are recorded as
+ * the single requests they are made of. Blocks of named Processes are recorded
+ * by name, also when they are freed or resized by handle.
+ */
+public class TraceRecorder implements Closeable
+{
+	static final long TRACE_MAGIC = 0x4255445954524143L;	//"BUDYTRAC"
+	static final int TRACE_VERSION = 1;
+
+	static final byte ALLOCATE = 'a';
+	static final byte FREE = 'f';
+	static final byte REALLOCATE = 'r';
+	static final byte NAMED = 'n';
+	static final byte DEALLOCATE = 'd';
+	static final byte RENAMED = 'R';		//Reallocate of a named Process
+
+	private MMU mmu;
+	private DataOutputStream out;
+	private long last;								//Time of the last record
+	private int nextId;								//Id of the next block allocated by handle
+	private HashMap<Long, Integer> ids = new HashMap<Long, Integer>();	//Id of each block in use, by handle
+	private long records;
+
+	/**
+	 * Starts recording the requests made to an MMU
+	 * @param mmu MMU to record
+	 * @param out stream the trace is written to, it is closed by close()
+	 * @throws IOException if the header can't be written
+	 */
+	public TraceRecorder(MMU mmu, OutputStream out) throws IOException
+	{
+		this.mmu = mmu;
+		this.out = new DataOutputStream(new BufferedOutputStream(out));
+		this.out.writeLong(TRACE_MAGIC);
+		this.out.writeInt(TRACE_VERSION);
+		this.out.writeInt(mmu.getMemorySize());
+		this.out.writeInt(mmu.getChunkSize());
+
+		last = System.nanoTime();
+		mmu.recorder = this;
+	}
+
+	/**
+	 * @return the number of requests recorded
+	 */
+	public long getRecords()
+	{
+		return records;
+	}
+
+	/**
+	 * Stops recording and closes the trace
+	 */
+	public void close() throws IOException
+	{
+		mmu.recorder = null;
+		out.close();
+	}
+
+	/**
+	 * Called by the MMU when a block is asked for by handle
+	 * @param handle handle it got, Handle.NONE if it didn't fit
+	 */
+	void allocated(int bytes, long handle)
+	{
+		start(ALLOCATE);
+		writeVarint(bytes & 0xFFFFFFFFL);
+		if(handle != Handle.NONE)
+			ids.put(handle, nextId);
+		nextId++;
+	}
+
+	/**
+	 * Called by the MMU when a block is freed by handle
+	 * @param name name of the block's Process, null for a block allocated by handle
+	 */
+	void freed(long handle, String name)
+	{
+		//Blocks of named Processes don't have ids, their names are recorded
+		if(name != null)
+		{
+			deallocated(name);
+			return;
+		}
+		
+		Integer id = ids.remove(handle);
+		if(id == null)
+			return;
+
+		start(FREE);
+		writeVarint(id);
+	}
+
+	/**
+	 * Called by the MMU when a block is resized
+	 * @param moved handle of the resized block, Handle.NONE if it didn't fit
+	 * @param name name of the block's Process, null for a block allocated by handle
+	 */
+	void reallocated(long handle, int bytes, long moved, String name)
+	{
+		if(name != null)
+		{
+			start(RENAMED);
+			writeVarint(bytes & 0xFFFFFFFFL);
+			writeUTF(name);
+			return;
+		}
+		
+		Integer id = ids.get(handle);
+		if(id == null)
+			return;
+
+		start(REALLOCATE);
+		writeVarint(id);
+		writeVarint(bytes & 0xFFFFFFFFL);
+		if(moved != Handle.NONE)
+		{
+			ids.remove(handle);
+			ids.put(moved, id);
+		}
+	}
+
+	/**
+	 * Called by the MMU when a block is moved without being asked to, which keeps its id
+	 */
+	void relocated(long from, long to)
+	{
+		Integer id = ids.remove(from);
+		if(id != null)
+			ids.put(to, id);
+	}
+
+	/**
+	 * Called by the MMU when a named Process is asked for
+	 */
+	void named(String name, int size)
+	{
+		start(NAMED);
+		writeVarint(size & 0xFFFFFFFFL);
+		writeUTF(name);
+	}
+
+	/**
+	 * Called by the MMU when a named Process is to be removed
+	 */
+	void deallocated(String name)
+	{
+		start(DEALLOCATE);
+		writeUTF(name);
+	}
+
+	/**
+	 * Writes the type and time of a record
+	 */
+	private void start(byte type)
+	{
+		long now = System.nanoTime();
+		try
+		{
+			out.writeByte(type);
+		}
+		catch(IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+		writeVarint(now - last);
+		last = now;
+		records++;
+	}
+
+	/**
+	 * Writes a number that is not negative in 7 bit groups, lowest first, with the
+	 * top bit set on all but the last
+	 */
+	private void writeVarint(long value)
+	{
+		try
+		{
+			while(value >= 0x80)
+			{
+				out.writeByte((int) (value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			out.writeByte((int) value);
+		}
+		catch(IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void writeUTF(String s)
+	{
+		try
+		{
+			out.writeUTF(s);
+		}
+		catch(IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -0,0 +1,280 @@
+package binarybuddysystem;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Replays a trace written by TraceRecorder against a fresh MMU, as fast as
+ * it can go. The whole trace is decoded before the clock starts, so only the
+ * MMU is timed, and the times in the trace are only used to report how long
+ * the workload took when it was recorded.
+ *
+ * Every few requests the state of the MMU is sampled, which gives the
+ * fragmentation curve of the workload.
+ *
+ * Usage: java binarybuddysystem.TraceReplayer trace [MMUSize ChunkSize [SampleEvery]]
+ */
+public class TraceReplayer
+{
+	private int memorySize;
+	private int chunkSize;
+
+	private byte[] types;		//Type of each request
+	private int[] args;			//Size, or id of the block freed
+	private int[] ids;			//Id of the block each reallocate resizes
+	private String[] names;		//Name of each named request
+	private int count;			//Number of requests
+	private long traceNanos;	//How long the requests took when they were recorded
+
+	private long replayNanos;
+	private int allocations;
+	private int failures;
+	private ArrayList<double[]> curve = new ArrayList<double[]>();
+
+	/**
+	 * Reads a trace
+	 * @param in stream holding the trace, it is not closed
+	 * @throws IOException if the stream can't be read or is not a trace
+	 */
+	public TraceReplayer(InputStream in) throws IOException
+	{
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+		if(data.readLong() != TraceRecorder.TRACE_MAGIC)
+			throw new IOException("Not an MMU trace");
+		int version = data.readInt();
+		if(version != TraceRecorder.TRACE_VERSION)
+			throw new IOException("Unsupported trace version " + version);
+		memorySize = data.readInt();
+		chunkSize = data.readInt();
+
+		types = new byte[1024];
+		args = new int[1024];
+		ids = new int[1024];
+		names = new String[1024];
+
+		while(true)
+		{
+			int type = data.read();
+			if(type == -1)
+				break;
+
+			if(count == types.length)
+			{
+				types = Arrays.copyOf(types, count * 2);
+				args = Arrays.copyOf(args, count * 2);
+				ids = Arrays.copyOf(ids, count * 2);
+				names = Arrays.copyOf(names, count * 2);
+			}
+
+			types[count] = (byte) type;
+			traceNanos += readVarint(data);
+			switch(type)
+			{
+			case TraceRecorder.ALLOCATE:
+			case TraceRecorder.FREE:
+				args[count] = (int) readVarint(data);
+				break;
+			case TraceRecorder.REALLOCATE:
+				ids[count] = (int) readVarint(data);
+				args[count] = (int) readVarint(data);
+				break;
+			case TraceRecorder.NAMED:
+			case TraceRecorder.RENAMED:
+				args[count] = (int) readVarint(data);
+				names[count] = data.readUTF();
+				break;
+			case TraceRecorder.DEALLOCATE:
+				names[count] = data.readUTF();
+				break;
+			default:
+				throw new IOException("Unknown trace record " + type);
+			}
+			count++;
+		}
+	}
+
+	/**
+	 * Replays the trace against an MMU
+	 * @param mmu MMU to replay against, normally a new one
+	 * @param sampleEvery requests between two samples of the fragmentation curve
+	 */
+	public void replay(MMU mmu, int sampleEvery)
+	{
+		long[] handles = new long[16];
+		int nextId = 0;
+		allocations = 0;
+		failures = 0;
+		curve.clear();
+
+		long start = System.nanoTime();
+		for(int i = 0; i < count; i++)
+		{
+			switch(types[i])
+			{
+			case TraceRecorder.ALLOCATE:
+				if(nextId == handles.length)
+					handles = Arrays.copyOf(handles, nextId * 2);
+				handles[nextId] = mmu.allocate(args[i]);
+				allocations++;
+				if(handles[nextId++] == Handle.NONE)
+					failures++;
+				break;
+			case TraceRecorder.FREE:
+				//Blocks that didn't fit this time have nothing to free
+				if(args[i] < nextId && handles[args[i]] != Handle.NONE)
+					mmu.free(handles[args[i]]);
+				break;
+			case TraceRecorder.REALLOCATE:
+				if(ids[i] < nextId && handles[ids[i]] != Handle.NONE)
+				{
+					long moved = mmu.reallocate(handles[ids[i]], args[i]);
+					allocations++;
+					if(moved == Handle.NONE)
+						failures++;
+					else
+						handles[ids[i]] = moved;
+				}
+				break;
+			case TraceRecorder.NAMED:
+				allocations++;
+				if(mmu.allocate(names[i], args[i]) == null)
+					failures++;
+				break;
+			case TraceRecorder.RENAMED:
+				long named = mmu.handleOf(names[i]);
+				if(named != Handle.NONE)
+				{
+					allocations++;
+					if(mmu.reallocate(named, args[i]) == Handle.NONE)
+						failures++;
+				}
+				break;
+			case TraceRecorder.DEALLOCATE:
+				mmu.deallocate(names[i]);
+				break;
+			}
+
+			if(sampleEvery > 0 && (i + 1) % sampleEvery == 0)
+			{
+				curve.add(new double[] {i + 1, (double) mmu.getReservedBytes() / mmu.getMemorySize(),
+						mmu.getInternalFragmentation(), mmu.getExternalFragmentation()});
+			}
+		}
+		replayNanos = System.nanoTime() - start;
+	}
+
+	/**
+	 * @return the memory size of the MMU the trace was recorded on
+	 */
+	public int getMemorySize()
+	{
+		return memorySize;
+	}
+
+	/**
+	 * @return the chunk size of the MMU the trace was recorded on
+	 */
+	public int getChunkSize()
+	{
+		return chunkSize;
+	}
+
+	/**
+	 * @return the number of requests in the trace
+	 */
+	public int getRequests()
+	{
+		return count;
+	}
+
+	/**
+	 * @return the requests per second of the last replay
+	 */
+	public double getOpsPerSecond()
+	{
+		return count * 1e9 / Math.max(replayNanos, 1);
+	}
+
+	/**
+	 * @return the number of allocations that didn't fit in the last replay
+	 */
+	public int getFailures()
+	{
+		return failures;
+	}
+
+	/**
+	 * Gets the fragmentation curve of the last replay
+	 * @return one row per sample: requests so far, share of the memory in use,
+	 * internal fragmentation and external fragmentation (see MMU)
+	 */
+	public double[][] getCurve()
+	{
+		return curve.toArray(new double[curve.size()][]);
+	}
+
+	/**
+	 * @return a report of the last replay
+	 */
+	public String toString()
+	{
+		StringBuilder content = new StringBuilder();
+		content.append(String.format("Replayed %d requests in %.3f ms (%.0f ops/sec), recorded in %.3f ms%n",
+				count, replayNanos / 1e6, getOpsPerSecond(), traceNanos / 1e6));
+		content.append(String.format("Failed allocations: %d of %d (%.2f%%)%n", failures, allocations,
+				allocations == 0 ? 0 : 100.0 * failures / allocations));
+
+		content.append(String.format("%12s %8s %10s %10s%n", "Requests", "Used", "Internal", "External"));
+		for(double[] sample : curve)
+		{
+			content.append(String.format("%12d %7.1f%% %9.1f%% %9.1f%%%n", (long) sample[0], sample[1] * 100,
+					sample[2] * 100, sample[3] * 100));
+		}
+
+		return content.toString();
+	}
+
+	private static long readVarint(DataInputStream data) throws IOException
+	{
+		long value = 0;
+		for(int shift = 0; shift < 64; shift += 7)
+		{
+			int b = data.read();
+			if(b == -1)
+				throw new EOFException("Trace ends in the middle of a record");
+			value |= (long) (b & 0x7F) << shift;
+			if((b & 0x80) == 0)
+				return value;
+		}
+
+		throw new IOException("Trace is corrupt");
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if(args.length != 1 && args.length != 3 && args.length != 4)
+		{
+			System.err.println("Usage: java binarybuddysystem.TraceReplayer trace [MMUSize ChunkSize [SampleEvery]]");
+			System.exit(0);
+		}
+
+		TraceReplayer replayer;
+		try(InputStream in = new FileInputStream(args[0]))
+		{
+			replayer = new TraceReplayer(in);
+		}
+
+		int memSize = args.length > 1 ? Integer.parseInt(args[1]) : replayer.getMemorySize();
+		int chunkSize = args.length > 1 ? Integer.parseInt(args[2]) : replayer.getChunkSize();
+		int sampleEvery = args.length > 3 ? Integer.parseInt(args[3]) : Math.max(1, replayer.getRequests() / 20);
+
+		replayer.replay(new MMU(memSize, chunkSize), sampleEvery);
+		System.out.print(replayer);
+	}
+}
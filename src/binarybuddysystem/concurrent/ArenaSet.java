@@ -0,0 +1,228 @@
+package binarybuddysystem.concurrent;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import binarybuddysystem.BuddyAllocator;
+import binarybuddysystem.Handle;
+import binarybuddysystem.MMU;
+
+/**
+ * A thread safe allocator made of several independent MMU arenas, each with
+ * its own lock, so that threads working in different arenas never meet.
+ *
+ * The first time a thread allocates it is given the arena with the least
+ * memory in use as its home. It keeps allocating there, and only tries the
+ * other arenas when its home is full, moving its home to the arena that had
+ * room. Handles count chunks across the arenas one after the other, so the
+ * arena of a block is its chunk index divided by the chunks per arena.
+ *
+ * Each arena has a ReentrantLock of its own, as in StripedMMU, so waiting for
+ * an arena is safe on virtual threads.
+ */
+public class ArenaSet implements BuddyAllocator
+{
+	private MMU[] arenas;
+	private ReentrantLock[] locks;		//Guards each arena
+	private AtomicLongArray reserved;	//Bytes in use in each arena
+	private int arenaSize;
+	private int chunkSize;
+	private int arenaShift;				//log2 of the chunks per arena
+
+	private ThreadLocal<int[]> home = new ThreadLocal<int[]>();
+
+	/**
+	 * constructor for ArenaSet
+	 * @param count number of arenas
+	 * @param arenaSize memory size of each arena in bytes (2^n)
+	 * @param chunkSize minimum chunk size in bytes (2^k)
+	 * @param arena true to back every arena with direct memory (see MMU(int, int, boolean))
+	 */
+	public ArenaSet(int count, int arenaSize, int chunkSize, boolean arena)
+	{
+		if(count <= 0)
+			throw new IllegalArgumentException("There must be at least one arena");
+
+		arenas = new MMU[count];
+		locks = new ReentrantLock[count];
+		for(int i = 0; i < count; i++)
+		{
+			arenas[i] = new MMU(arenaSize, chunkSize, arena);
+			locks[i] = new ReentrantLock();
+		}
+
+		reserved = new AtomicLongArray(count);
+		this.arenaSize = arenaSize;
+		this.chunkSize = chunkSize;
+		arenaShift = Integer.numberOfTrailingZeros(arenaSize / chunkSize);
+	}
+
+	public long allocate(int bytes)
+	{
+		if(bytes > arenaSize)
+			return Handle.NONE;
+
+		int[] mine = home.get();
+		if(mine == null)
+		{
+			mine = new int[] {leastLoaded()};
+			home.set(mine);
+		}
+
+		//Home first, then every other arena after it
+		for(int i = 0; i < arenas.length; i++)
+		{
+			int a = (mine[0] + i) % arenas.length;
+			long local;
+			locks[a].lock();
+			try
+			{
+				local = arenas[a].allocate(bytes);
+			}
+			finally
+			{
+				locks[a].unlock();
+			}
+
+			if(local != Handle.NONE)
+			{
+				reserved.addAndGet(a, (long) chunkSize << Handle.order(local));
+				mine[0] = a;
+				return Handle.encode(((long) a << arenaShift) + Handle.index(local), Handle.order(local));
+			}
+		}
+
+		return Handle.NONE;
+	}
+
+	public boolean free(long handle)
+	{
+		if(handle < 0)
+			return false;
+
+		long a = Handle.index(handle) >>> arenaShift;
+		if(a >= arenas.length)
+			return false;
+
+		boolean freed;
+		locks[(int) a].lock();
+		try
+		{
+			freed = arenas[(int) a].free(local(handle));
+		}
+		finally
+		{
+			locks[(int) a].unlock();
+		}
+
+		if(freed)
+			reserved.addAndGet((int) a, -((long) chunkSize << Handle.order(handle)));
+		return freed;
+	}
+
+	/**
+	 * Gets the memory of an allocated block, when the arenas are backed by memory
+	 * @param handle handle of the block
+	 * @return the block's memory, null if the handle is not an allocated block
+	 * @throws IllegalStateException if the arenas have no memory
+	 */
+	public ByteBuffer buffer(long handle)
+	{
+		long a = handle < 0 ? -1 : Handle.index(handle) >>> arenaShift;
+		if(a < 0 || a >= arenas.length)
+			return null;
+
+		locks[(int) a].lock();
+		try
+		{
+			return arenas[(int) a].buffer(local(handle));
+		}
+		finally
+		{
+			locks[(int) a].unlock();
+		}
+	}
+
+	public int getChunkSize()
+	{
+		return chunkSize;
+	}
+
+	/**
+	 * @return the memory size of each arena, which is the largest block that
+	 * can be allocated (see getTotalSize for all of the arenas)
+	 */
+	public int getMemorySize()
+	{
+		return arenaSize;
+	}
+
+	/**
+	 * @return the memory size of all of the arenas together, in bytes
+	 */
+	public long getTotalSize()
+	{
+		return (long) arenaSize * arenas.length;
+	}
+
+	/**
+	 * @return the number of arenas
+	 */
+	public int getArenas()
+	{
+		return arenas.length;
+	}
+
+	/**
+	 * Gets the bytes in use in an arena, counting whole blocks
+	 * @param arena index of the arena
+	 * @return bytes reserved by allocated blocks
+	 */
+	public long getReserved(int arena)
+	{
+		return reserved.get(arena);
+	}
+
+	/**
+	 * Gets how full an arena is
+	 * @param arena index of the arena
+	 * @return fraction of the arena reserved by allocated blocks, 0 to 1
+	 */
+	public double getOccupancy(int arena)
+	{
+		return (double) reserved.get(arena) / arenaSize;
+	}
+
+	/**
+	 * @return the arena with the least memory in use
+	 */
+	private int leastLoaded()
+	{
+		int best = (int) (Thread.currentThread().getId() % arenas.length);
+		for(int i = 0; i < arenas.length; i++)
+		{
+			if(reserved.get(i) < reserved.get(best))
+				best = i;
+		}
+
+		return best;
+	}
+
+	private long local(long handle)
+	{
+		return Handle.encode(Handle.index(handle) & ((1L << arenaShift) - 1), Handle.order(handle));
+	}
+
+	public String toString()
+	{
+		StringBuilder content = new StringBuilder(arenas.length + " arenas of " + arenaSize + " bytes\n");
+		for(int i = 0; i < arenas.length; i++)
+		{
+			content.append("Arena ").append(i).append(": ").append(reserved.get(i)).append(" bytes reserved (")
+					.append(Math.round(getOccupancy(i) * 100)).append("%)\n");
+		}
+
+		return content.toString();
+	}
+}
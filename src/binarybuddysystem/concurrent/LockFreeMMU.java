@@ -0,0 +1,302 @@
+package binarybuddysystem.concurrent;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import binarybuddysystem.BuddyAllocator;
+import binarybuddysystem.Handle;
+
+/**
+ * A thread safe buddy allocator without locks. No thread ever waits for
+ * another one, every step is a compare-and-set.
+ *
+ * The blocks form a heap-indexed binary tree (node 1 is the whole memory, node
+ * n has the children 2n and 2n + 1) and every node has an atomic state:
+ *  - NONE: not a block, it is part of a bigger block or of a split one
+ *  - FREE: a hole
+ *  - USED: an allocated block
+ *  - SPLIT: cut into its two children
+ *  - BUSY: owned by one thread in the middle of a split or merge
+ * plus an IN_STACK flag. Holes of each order sit on a Treiber stack whose head
+ * carries a tag that changes on every push and pop, so a head that was popped
+ * and pushed back in between can't be mistaken for the old one (ABA).
+ *
+ * Merging takes the buddy out of its stack by moving it from FREE to BUSY and
+ * leaving the entry behind. Whoever pops such an entry finds the node isn't FREE
+ * and drops it, and a node is only pushed again once its entry has been popped,
+ * so a node is never on a stack twice.
+ *
+ * Buddies freed at the same moment may both miss each other and stay apart.
+ * Allocations that find no hole merge such pairs before giving up.
+ */
+public class LockFreeMMU implements BuddyAllocator
+{
+	private static final int NONE = 0;
+	private static final int FREE = 1;
+	private static final int USED = 2;
+	private static final int SPLIT = 3;
+	private static final int BUSY = 4;
+	private static final int STATE = 7;
+	private static final int IN_STACK = 8;
+
+	private int chunkSize;
+	private int memorySize;
+	private int numChunks;
+	private int maxOrder;
+
+	private AtomicIntegerArray state;	//State of each node
+	private AtomicIntegerArray next;	//Next node on the same stack
+	private AtomicLongArray heads;		//Top node of the stack of each order, tag in the high 32 bits
+
+	/**
+	 * constructor for LockFreeMMU
+	 * @param memSize total memory size in bytes (2^n)
+	 * @param chunkSize minimum chunk size in bytes (2^k)
+	 */
+	public LockFreeMMU(int memSize, int chunkSize)
+	{
+		if(memSize <= 0 || chunkSize <= 0 || Integer.bitCount(memSize) != 1
+				|| Integer.bitCount(chunkSize) != 1 || chunkSize > memSize)
+			throw new IllegalArgumentException("Memory and chunk sizes must be 2^n with chunkSize <= memSize");
+
+		this.chunkSize = chunkSize;
+		memorySize = memSize;
+		numChunks = memSize / chunkSize;
+		maxOrder = Integer.numberOfTrailingZeros(numChunks);
+
+		state = new AtomicIntegerArray(2 * numChunks);
+		next = new AtomicIntegerArray(2 * numChunks);
+		heads = new AtomicLongArray(maxOrder + 1);
+
+		//Initialize that the entire memory is one unit that is a hole
+		state.set(1, BUSY);
+		release(1, maxOrder);
+	}
+
+	public long allocate(int bytes)
+	{
+		if(bytes > memorySize)
+			return Handle.NONE;
+
+		int needed = Handle.orderFor(bytes, chunkSize);
+		long handle = take(needed);
+
+		//Merge buddies that missed each other, then try again
+		if(handle == Handle.NONE && needed > 0)
+		{
+			repair(needed);
+			handle = take(needed);
+		}
+
+		return handle;
+	}
+
+	public boolean free(long handle)
+	{
+		if(handle < 0 || Handle.index(handle) >= numChunks)
+			return false;
+
+		int k = Handle.order(handle);
+		long index = Handle.index(handle);
+		if(k > maxOrder || (index & ((1L << k) - 1)) != 0)
+			return false;
+
+		int node = (1 << (maxOrder - k)) + (int) (index >>> k);
+		if(!claim(node, USED))
+			return false;
+
+		coalesce(node, k);
+		return true;
+	}
+
+	public int getChunkSize()
+	{
+		return chunkSize;
+	}
+
+	public int getMemorySize()
+	{
+		return memorySize;
+	}
+
+	/**
+	 * Takes the smallest hole that is big enough off its stack and splits it down
+	 * @param needed order of the block needed
+	 * @return handle of the block, Handle.NONE if no hole was found
+	 */
+	private long take(int needed)
+	{
+		for(int k = needed; k <= maxOrder; k++)
+		{
+			int node = popFree(k);
+			if(node == 0)
+				continue;
+
+			//The left half is kept and the right half becomes a hole
+			while(k > needed)
+			{
+				setState(node, SPLIT);
+				node <<= 1;
+				k--;
+				setState(node, BUSY);
+				setState(node + 1, BUSY);
+				release(node + 1, k);
+			}
+
+			setState(node, USED);
+			return Handle.encode((long) (node - (1 << (maxOrder - k))) << k, k);
+		}
+
+		return Handle.NONE;
+	}
+
+	/**
+	 * Merges a block the current thread owns with its buddies for as long as they
+	 * are holes, then makes the result a hole.
+	 * @param node node of the block, in state BUSY
+	 * @param k order of the block
+	 */
+	private void coalesce(int node, int k)
+	{
+		for(int attempt = 0; ; attempt++)
+		{
+			while(k < maxOrder && claim(node ^ 1, FREE))
+			{
+				//Both halves are ours, so the parent is too
+				setState(node ^ 1, NONE);
+				setState(node, NONE);
+				node >>>= 1;
+				k++;
+				setState(node, BUSY);
+			}
+
+			release(node, k);
+
+			//A buddy freed at the same moment may not have seen this hole yet
+			if(k == maxOrder || attempt == 2 || (state.get(node ^ 1) & STATE) != FREE
+					|| !claim(node, FREE))
+				return;
+		}
+	}
+
+	/**
+	 * Takes every hole below an order off its stack and tries to merge it again
+	 * @param below orders below this one are repaired
+	 */
+	private void repair(int below)
+	{
+		for(int k = 0; k < below; k++)
+		{
+			//Holes that can't merge go back on the same stack, so stop after as
+			//many as there can be
+			for(int i = numChunks >>> k; i > 0; i--)
+			{
+				int node = popFree(k);
+				if(node == 0)
+					break;
+				coalesce(node, k);
+			}
+		}
+	}
+
+	/**
+	 * Pops stack entries until one of them is still a hole, and claims it
+	 * @param k order of the stack
+	 * @return node of the hole, now BUSY, 0 if the stack is empty
+	 */
+	private int popFree(int k)
+	{
+		while(true)
+		{
+			int node = pop(k);
+			if(node == 0)
+				return 0;
+
+			//Claim the hole, or just mark a stale entry as gone
+			while(true)
+			{
+				int s = state.get(node);
+				if((s & STATE) == FREE)
+				{
+					if(state.compareAndSet(node, s, BUSY))
+						return node;
+				}
+				else if(state.compareAndSet(node, s, s & ~IN_STACK))
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Makes a block the current thread owns a hole, pushing it on its stack
+	 * unless an old entry for it is still there.
+	 */
+	private void release(int node, int k)
+	{
+		while(true)
+		{
+			int s = state.get(node);
+			if(state.compareAndSet(node, s, FREE | IN_STACK))
+			{
+				if((s & IN_STACK) == 0)
+					push(k, node);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Moves a node from one state to BUSY
+	 * @return true if the node was in that state and now belongs to the current thread
+	 */
+	private boolean claim(int node, int expected)
+	{
+		while(true)
+		{
+			int s = state.get(node);
+			if((s & STATE) != expected)
+				return false;
+			if(state.compareAndSet(node, s, BUSY | (s & IN_STACK)))
+				return true;
+		}
+	}
+
+	/**
+	 * Sets the state of a node the current thread owns, keeping its IN_STACK flag,
+	 * which poppers may clear at any time.
+	 */
+	private void setState(int node, int value)
+	{
+		while(true)
+		{
+			int s = state.get(node);
+			if(state.compareAndSet(node, s, value | (s & IN_STACK)))
+				return;
+		}
+	}
+
+	private void push(int k, int node)
+	{
+		while(true)
+		{
+			long head = heads.get(k);
+			next.set(node, (int) head);
+			if(heads.compareAndSet(k, head, (((head >>> 32) + 1) << 32) | node))
+				return;
+		}
+	}
+
+	private int pop(int k)
+	{
+		while(true)
+		{
+			long head = heads.get(k);
+			int node = (int) head;
+			if(node == 0)
+				return 0;
+			long below = next.get(node) & 0xFFFFFFFFL;
+			if(heads.compareAndSet(k, head, (((head >>> 32) + 1) << 32) | below))
+				return node;
+		}
+	}
+}
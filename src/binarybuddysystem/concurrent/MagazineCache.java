@@ -0,0 +1,148 @@
+package binarybuddysystem.concurrent;
+
+import binarybuddysystem.BuddyAllocator;
+import binarybuddysystem.Handle;
+
+/**
+ * A per thread cache of free blocks in front of a shared, thread safe buddy
+ * allocator (a StripedMMU or LockFreeMMU).
+ *
+ * Each thread keeps a magazine: a small stack of free blocks for every order
+ * up to a limit. Repeat allocations and frees of those sizes are served from
+ * the magazine without touching anything shared. An empty magazine is refilled
+ * with half a magazine of blocks from the shared allocator, and a full one
+ * gives half of its blocks back, so the shared allocator is only reached
+ * once every few operations.
+ *
+ * Cached blocks are not holes to the shared allocator and don't merge. A thread
+ * that stops allocating should call flush() to give its blocks back. Frees of
+ * cached orders are not checked, so freeing a block twice corrupts the cache.
+ */
+public class MagazineCache implements BuddyAllocator
+{
+	private BuddyAllocator shared;
+	private int maxOrder;		//Largest order that is cached
+	private int capacity;		//Blocks per order in each magazine
+
+	private ThreadLocal<Magazine> magazines = new ThreadLocal<Magazine>()
+	{
+		@Override
+		protected Magazine initialValue()
+		{
+			return new Magazine();
+		}
+	};
+
+	/**
+	 * constructor for MagazineCache
+	 * @param shared thread safe allocator behind the cache
+	 * @param maxOrder largest order to cache, bigger blocks go straight to the shared allocator
+	 * @param capacity number of blocks of each order a thread may hold (at least 2)
+	 */
+	public MagazineCache(BuddyAllocator shared, int maxOrder, int capacity)
+	{
+		if(capacity < 2)
+			throw new IllegalArgumentException("Magazines must hold at least 2 blocks");
+
+		this.shared = shared;
+		this.maxOrder = maxOrder;
+		this.capacity = capacity;
+	}
+
+	public long allocate(int bytes)
+	{
+		int order = Handle.orderFor(bytes, shared.getChunkSize());
+		if(order > maxOrder)
+			return shared.allocate(bytes);
+
+		Magazine m = magazines.get();
+		if(m.counts[order] == 0 && !m.refill(order))
+		{
+			//The blocks may be sitting in this thread's magazines as other sizes
+			flush();
+			return shared.allocate(bytes);
+		}
+
+		return m.blocks[order][--m.counts[order]];
+	}
+
+	public boolean free(long handle)
+	{
+		if(handle < 0)
+			return false;
+
+		int order = Handle.order(handle);
+		if(order > maxOrder)
+			return shared.free(handle);
+
+		Magazine m = magazines.get();
+		if(m.counts[order] == capacity)
+			m.spill(order);
+
+		m.blocks[order][m.counts[order]++] = handle;
+		return true;
+	}
+
+	/**
+	 * Gives every block in the current thread's magazine back to the shared allocator
+	 */
+	public void flush()
+	{
+		Magazine m = magazines.get();
+		for(int k = 0; k <= maxOrder; k++)
+		{
+			while(m.counts[k] > 0)
+				shared.free(m.blocks[k][--m.counts[k]]);
+		}
+	}
+
+	public int getChunkSize()
+	{
+		return shared.getChunkSize();
+	}
+
+	public int getMemorySize()
+	{
+		return shared.getMemorySize();
+	}
+
+	/**
+	 * The free blocks one thread holds, by order
+	 */
+	private class Magazine
+	{
+		private long[][] blocks = new long[maxOrder + 1][capacity];
+		private int[] counts = new int[maxOrder + 1];
+
+		/**
+		 * Fills half of an empty magazine from the shared allocator
+		 * @return true if at least one block was added
+		 */
+		private boolean refill(int order)
+		{
+			int bytes = shared.getChunkSize() << order;
+			while(counts[order] < capacity / 2)
+			{
+				long handle = shared.allocate(bytes);
+				if(handle == Handle.NONE)
+					break;
+				blocks[order][counts[order]++] = handle;
+			}
+
+			return counts[order] > 0;
+		}
+
+		/**
+		 * Gives the older half of a full magazine back to the shared allocator
+		 */
+		private void spill(int order)
+		{
+			int half = capacity / 2;
+			for(int i = 0; i < half; i++)
+				shared.free(blocks[order][i]);
+
+			System.arraycopy(blocks[order], half, blocks[order], 0, counts[order] - half);
+			counts[order] -= half;
+		}
+	}
+}
@@ -0,0 +1,287 @@
+package binarybuddysystem.concurrent;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import binarybuddysystem.BuddyAllocator;
+import binarybuddysystem.Handle;
+import binarybuddysystem.MMU;
+
+/**
+ * A thread safe buddy allocator that splits the memory into stripes, the
+ * 2^s subtrees just below the root of the buddy tree. Each stripe is its own
+ * MMU guarded by its own lock, so blocks in different stripes are allocated
+ * and freed in parallel.
+ *
+ * A thread starts at the stripe picked by its id and only moves on to other
+ * stripes when that one is busy or full. Blocks bigger than a stripe take
+ * a run of whole, empty stripes, locked in ascending order.
+ */
+public class StripedMMU implements BuddyAllocator
+{
+	private int chunkSize;
+	private int memorySize;
+	private int maxOrder;			//The whole memory is 2^maxOrder chunks
+	private int stripeOrder;		//Each stripe is 2^stripeOrder chunks
+	private int stripeSize;			//Bytes per stripe
+
+	private MMU[] stripes;
+	private ReentrantLock[] locks;
+	private int[] spans;			//Order of the block spanning each stripe, -1 if none
+
+	/**
+	 * constructor for StripedMMU
+	 * @param memSize total memory size in bytes (2^n)
+	 * @param chunkSize minimum chunk size in bytes (2^k)
+	 * @param stripes number of stripes (2^s, at most the number of chunks)
+	 */
+	public StripedMMU(int memSize, int chunkSize, int stripes)
+	{
+		if(Integer.bitCount(stripes) != 1 || stripes > memSize / chunkSize)
+			throw new IllegalArgumentException("Stripes must be 2^s and no more than the number of chunks");
+
+		this.chunkSize = chunkSize;
+		this.memorySize = memSize;
+		maxOrder = Integer.numberOfTrailingZeros(memSize / chunkSize);
+		stripeSize = memSize / stripes;
+		stripeOrder = Integer.numberOfTrailingZeros(stripeSize / chunkSize);
+
+		this.stripes = new MMU[stripes];
+		locks = new ReentrantLock[stripes];
+		spans = new int[stripes];
+		for(int i = 0; i < stripes; i++)
+		{
+			this.stripes[i] = new MMU(stripeSize, chunkSize);
+			locks[i] = new ReentrantLock();
+			spans[i] = -1;
+		}
+	}
+
+	public long allocate(int bytes)
+	{
+		if(bytes > memorySize)
+			return Handle.NONE;
+
+		int order = Handle.orderFor(bytes, chunkSize);
+		if(order > stripeOrder)
+			return allocateSpan(order);
+
+		int home = home();
+
+		//First pass only takes stripes that no other thread holds
+		for(int i = 0; i < stripes.length; i++)
+		{
+			int s = (home + i) & (stripes.length - 1);
+			if(locks[s].tryLock())
+			{
+				try
+				{
+					long local = stripes[s].allocate(bytes);
+					if(local != Handle.NONE)
+						return global(s, local);
+				}
+				finally
+				{
+					locks[s].unlock();
+				}
+			}
+		}
+
+		//Second pass waits for every stripe in turn
+		for(int i = 0; i < stripes.length; i++)
+		{
+			int s = (home + i) & (stripes.length - 1);
+			locks[s].lock();
+			try
+			{
+				long local = stripes[s].allocate(bytes);
+				if(local != Handle.NONE)
+					return global(s, local);
+			}
+			finally
+			{
+				locks[s].unlock();
+			}
+		}
+
+		return Handle.NONE;
+	}
+
+	public boolean free(long handle)
+	{
+		if(handle < 0 || Handle.index(handle) >= memorySize / chunkSize)
+			return false;
+
+		int order = Handle.order(handle);
+		if(order > maxOrder)
+			return false;
+		if(order > stripeOrder)
+			return freeSpan(handle);
+
+		int s = (int) (Handle.index(handle) >>> stripeOrder);
+		long local = Handle.encode(Handle.index(handle) & ((1L << stripeOrder) - 1), order);
+
+		locks[s].lock();
+		try
+		{
+			//The whole stripe may be part of a bigger block
+			if(spans[s] != -1)
+				return false;
+			return stripes[s].free(local);
+		}
+		finally
+		{
+			locks[s].unlock();
+		}
+	}
+
+	public int getChunkSize()
+	{
+		return chunkSize;
+	}
+
+	public int getMemorySize()
+	{
+		return memorySize;
+	}
+
+	/**
+	 * @return the number of stripes
+	 */
+	public int getStripes()
+	{
+		return stripes.length;
+	}
+
+	/**
+	 * Allocates a block bigger than a stripe out of a run of empty stripes
+	 * @param order order of the block
+	 * @return handle of the block, Handle.NONE if no run is empty
+	 */
+	private long allocateSpan(int order)
+	{
+		int run = 1 << (order - stripeOrder);
+
+		for(int first = 0; first < stripes.length; first += run)
+		{
+			lockRun(first, run);
+			try
+			{
+				//Take every stripe of the run whole, giving them back if one isn't empty
+				int taken = 0;
+				while(taken < run && stripes[first + taken].allocate(stripeSize) != Handle.NONE)
+					taken++;
+
+				if(taken == run)
+				{
+					for(int i = 0; i < run; i++)
+						spans[first + i] = order;
+					return Handle.encode((long) first << stripeOrder, order);
+				}
+
+				for(int i = 0; i < taken; i++)
+					stripes[first + i].free(Handle.encode(0, stripeOrder));
+			}
+			finally
+			{
+				unlockRun(first, run);
+			}
+		}
+
+		return Handle.NONE;
+	}
+
+	/**
+	 * Frees a block bigger than a stripe
+	 * @param handle handle of the block
+	 * @return true if successful, false if the handle is not an allocated block
+	 */
+	private boolean freeSpan(long handle)
+	{
+		int order = Handle.order(handle);
+		int run = 1 << (order - stripeOrder);
+		long index = Handle.index(handle);
+
+		if((index & ((1L << order) - 1)) != 0)
+			return false;
+
+		int first = (int) (index >>> stripeOrder);
+		if(first + run > stripes.length)
+			return false;
+		lockRun(first, run);
+		try
+		{
+			if(spans[first] != order)
+				return false;
+
+			for(int i = 0; i < run; i++)
+			{
+				spans[first + i] = -1;
+				stripes[first + i].free(Handle.encode(0, stripeOrder));
+			}
+			return true;
+		}
+		finally
+		{
+			unlockRun(first, run);
+		}
+	}
+
+	/**
+	 * Locks a run of stripes. Runs are always locked in ascending order while
+	 * single stripes are only ever held one at a time, so threads can't deadlock.
+	 * If it fails partway, the locks it took are given back.
+	 */
+	private void lockRun(int first, int run)
+	{
+		int locked = 0;
+		try
+		{
+			for(; locked < run; locked++)
+				locks[first + locked].lock();
+		}
+		catch(RuntimeException | Error e)
+		{
+			unlockRun(first, locked);
+			throw e;
+		}
+	}
+
+	private void unlockRun(int first, int run)
+	{
+		for(int i = run - 1; i >= 0; i--)
+			locks[first + i].unlock();
+	}
+
+	/**
+	 * @return the stripe the current thread starts looking in
+	 */
+	private int home()
+	{
+		long id = Thread.currentThread().getId();
+		return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & (stripes.length - 1);
+	}
+
+	private long global(int stripe, long local)
+	{
+		return Handle.encode(((long) stripe << stripeOrder) + Handle.index(local), Handle.order(local));
+	}
+
+	public String toString()
+	{
+		StringBuilder content = new StringBuilder();
+		for(int i = 0; i < stripes.length; i++)
+		{
+			locks[i].lock();
+			try
+			{
+				content.append("Stripe ").append(i).append(": ").append(stripes[i]);
+			}
+			finally
+			{
+				locks[i].unlock();
+			}
+		}
+
+		return content.toString();
+	}
+}
@@ -1,7 +1,10 @@
 package binarybuddysystem.producerconsumer;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Random;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.swing.JFrame;
 
@@ -11,6 +14,15 @@ import binarybuddysystem.view.MainWindow;
 /**
  * This class automatically allocates and deallocates
  * to the MMU and GUI.
+ * 
+ * In headless mode (see headless) there is no GUI: the same workload runs
+ * against a bare MMU with no animation time, as fast as it can, until it has
+ * done a number of operations or run for a while, and the time each MMU call
+ * takes is recorded.
+ * 
+ * Any number of Allocators and Deallocators can share the monitor. An
+ * Allocator waits while there is no space and a Deallocator while there is no
+ * process, each on its own condition, and is woken when that changes.
  * @author John Bucknam
  */
 
@@ -24,14 +36,32 @@ public class AllocatorDeallocator
 	private static int memorySize;
 	private static int minChunk;
 	
-	//Custom allocator (producer)
-	private static Allocator alloc;
-	//Custom deallocator (consumer)
-	private static Deallocator dealloc;
+	//Custom allocators (producers)
+	private static Allocator[] allocs;
+	//Custom deallocators (consumers)
+	private static Deallocator[] deallocs;
 	//Custom monitor for Allocator and Deallocator
 	private static AllocDeallocMonitor mon;
 	//Viewer for MMU
 	private static MainWindow mw;
+	//Bare MMU in headless mode, null when there is a viewer
+	private static MMU mmu;
+	
+	//Cleared to stop the threads
+	private static volatile boolean running;
+	//Operations left before stopping in headless mode, negative for no limit
+	private static long opsLeft;
+	//Time to stop in headless mode (System.nanoTime), Long.MAX_VALUE for no limit
+	private static long deadline;
+	
+	//Results of headless mode
+	private static long allocations;
+	private static long failures;
+	private static long deallocations;
+	private static LatencyHistogram latencies;
+	private static LatencyHistogram lockWaits;
+	private static long started;
+	private static long finished;
 	
 	//Used for randomization in sleep and lottery
 	private static Random rn = new Random();
@@ -54,12 +84,9 @@ public class AllocatorDeallocator
 		//Set custom classes
 		mw = new MainWindow(true, memorySize, minChunk);
 		mon = new AllocDeallocMonitor();
-		alloc = new Allocator();
-		dealloc = new Deallocator();
 		
 		//Start threads
-		alloc.start();
-		dealloc.start();
+		start(1, 1);
 	}
 	
 	/**
@@ -81,12 +108,9 @@ public class AllocatorDeallocator
 		//Set custom classes
 		mw = new MainWindow(true, memorySize, minChunk);
 		mon = new AllocDeallocMonitor();
-		alloc = new Allocator();
-		dealloc = new Deallocator();
 		
 		//Start threads
-		alloc.start();
-		dealloc.start();
+		start(1, 1);
 	}
 	
 	/**
@@ -110,12 +134,136 @@ public class AllocatorDeallocator
 		//Set custom classes
 		mw = new MainWindow(true, memorySize, minChunk, colorSize);
 		mon = new AllocDeallocMonitor();
-		alloc = new Allocator();
-		dealloc = new Deallocator();
 		
 		//Start Threads
-		alloc.start();
-		dealloc.start();
+		start(1, 1);
+	}
+	
+	/**
+	 * This constructor takes the memory size and minimum chunk size
+	 * for the MainWindow with the MMU as well as to act as constant
+	 * throughout the instance's lifespan. It will also set the speed
+	 * of the animation for the MainWindow, the size of the Main Window's
+	 * chunks and the number of Allocators and Deallocators.
+	 * @param memorySize
+	 * @param minChunk
+	 */
+	public AllocatorDeallocator(int memorySize, int minChunk, int speed,
+			int colorSize, int allocators, int deallocators)
+	{
+		//Set constants
+		AllocatorDeallocator.memorySize = memorySize;
+		AllocatorDeallocator.minChunk = minChunk;
+		N = memorySize/minChunk;
+		msec = speed;
+		
+		//Set custom classes
+		mw = new MainWindow(true, memorySize, minChunk, colorSize);
+		mon = new AllocDeallocMonitor();
+		
+		//Start Threads
+		start(allocators, deallocators);
+	}
+	
+	/**
+	 * This constructor is used by headless, which sets everything up itself.
+	 */
+	private AllocatorDeallocator()
+	{
+	}
+	
+	/**
+	 * Runs Allocators and Deallocators against a bare MMU, with no MainWindow
+	 * and no animation time, until either limit is reached. The threads are
+	 * started before it returns; use await() to wait for them and toString()
+	 * for the results.
+	 * @param memorySize
+	 * @param minChunk
+	 * @param allocators number of Allocator threads
+	 * @param deallocators number of Deallocator threads
+	 * @param ops number of MMU operations to run, 0 for no limit
+	 * @param millis time to run for (msec), 0 for no limit
+	 * @return the running workload
+	 */
+	public static AllocatorDeallocator headless(int memorySize, int minChunk, int allocators, int deallocators,
+			long ops, long millis)
+	{
+		//Set constants
+		AllocatorDeallocator.memorySize = memorySize;
+		AllocatorDeallocator.minChunk = minChunk;
+		N = memorySize/minChunk;
+		msec = 0;
+		
+		//Set limits and counters
+		opsLeft = ops > 0 ? ops : -1;
+		allocations = 0;
+		failures = 0;
+		deallocations = 0;
+		latencies = new LatencyHistogram();
+		lockWaits = new LatencyHistogram();
+		
+		//Set custom classes
+		mw = null;
+		mmu = new MMU(memorySize, minChunk);
+		mon = new AllocDeallocMonitor();
+		
+		//Start threads
+		started = System.nanoTime();
+		deadline = millis > 0 ? started + millis * 1000000 : Long.MAX_VALUE;
+		start(allocators, deallocators);
+		
+		return new AllocatorDeallocator();
+	}
+	
+	/**
+	 * Starts the Allocator and Deallocator threads.
+	 * @param allocators
+	 * @param deallocators
+	 */
+	private static void start(int allocators, int deallocators)
+	{
+		allocs = new Allocator[allocators];
+		deallocs = new Deallocator[deallocators];
+		for(int i = 0; i < allocators; i++)
+			allocs[i] = new Allocator();
+		for(int i = 0; i < deallocators; i++)
+			deallocs[i] = new Deallocator();
+		
+		running = true;
+		for(Allocator alloc : allocs)
+			alloc.start();
+		for(Deallocator dealloc : deallocs)
+			dealloc.start();
+	}
+	
+	/**
+	 * Waits for the threads of headless mode to reach their limit.
+	 * @throws InterruptedException
+	 */
+	public void await() throws InterruptedException
+	{
+		for(Allocator alloc : allocs)
+			alloc.join();
+		for(Deallocator dealloc : deallocs)
+			dealloc.join();
+	}
+	
+	/**
+	 * @return the throughput, allocation failure rate and MMU latencies of headless mode
+	 */
+	public String toString()
+	{
+		long ops = allocations + deallocations;
+		double seconds = (finished - started) / 1e9;
+		
+		String content = String.format("Ran %d operations in %.3f sec: %.0f ops/sec%n", ops, seconds, ops / seconds);
+		content += String.format("Allocations: %d, failed: %d (%.2f%%)%n", allocations, failures,
+				allocations == 0 ? 0 : 100.0 * failures / allocations);
+		content += "Deallocations: " + deallocations + "\n";
+		content += "Threads: " + allocs.length + " allocators, " + deallocs.length + " deallocators\n";
+		content += "MMU latency: " + latencies + "\n";
+		content += "Lock wait: " + lockWaits + "\n";
+		return content;
 	}
 	
 	/**
@@ -126,12 +274,9 @@ public class AllocatorDeallocator
 	 */
 	private static class Allocator extends Thread
 	{
-		private boolean running;
-		
 		@Override
 		public void run()
 		{
-			running = true;
 			while(running)
 			{
 				//System.out.println("Allocating");
@@ -140,7 +285,7 @@ public class AllocatorDeallocator
 				//Randomized sleep cycle based on animation time
 				try
 				{
-					if(rn.nextInt(10) == 0)
+					if(msec > 0 && rn.nextInt(10) == 0)
 						this.sleep(msec*2);
 				} catch (InterruptedException e)
 				{
@@ -160,12 +305,9 @@ public class AllocatorDeallocator
 	 */
 	private static class Deallocator extends Thread
 	{
-		private boolean running;
-		
 		@Override
 		public void run()
 		{
-			running = true;
 			while(running)
 			{
 				//System.out.println("Deallocating");
@@ -174,7 +316,7 @@ public class AllocatorDeallocator
 				//Randomized sleep cycle based on animation time
 				try
 				{
-					if(rn.nextInt(5) == 0)
+					if(msec > 0 && rn.nextInt(5) == 0)
 						this.sleep(msec*2);
 				} catch (InterruptedException e)
 				{
@@ -191,6 +333,11 @@ public class AllocatorDeallocator
 	 * It may allocate new, automated processes to the MainWindow and MMU
 	 * so long as it isn't filled, and it may deallocate currently existing
 	 * processes, so long as one exists.
+	 * 
+	 * Allocators wait on spaceAvailable and Deallocators on processAvailable.
+	 * Each is signalled when a deallocation or allocation changes it, and a
+	 * thread that is woken passes the signal on if there is still space or a
+	 * process left, so no thread sleeps while there is work for it.
 	 * @author John Bucknam
 	 *
 	 */
@@ -200,8 +347,16 @@ public class AllocatorDeallocator
 		private int [] chunkLotto;
 		private static ArrayList<String> processes;
 		private static ArrayList<Integer> processSizes;
+		//Same names as processes, to find them without going through the list
+		private static HashSet<String> names;
 		private int count;
 		
+		private final ReentrantLock lock = new ReentrantLock();
+		//Signalled when a deallocation makes room for the smallest chunk
+		private final Condition spaceAvailable = lock.newCondition();
+		//Signalled when an allocation adds a process
+		private final Condition processAvailable = lock.newCondition();
+		
 		/**
 		 * This default constructor uses information from the AllocatorDeallocator class
 		 * to set all of its variables. The AllocatorDeallocator must be defined before
@@ -216,6 +371,7 @@ public class AllocatorDeallocator
 			chunkLotto = new int[chunkVar];
 			processes = new ArrayList<String>(N);
 			processSizes = new ArrayList<Integer>(N);
+			names = new HashSet<String>();
 			
 			for(int i = 0; i < chunkVar; i++)
 			{
@@ -227,11 +383,32 @@ public class AllocatorDeallocator
 		 * This method attempts to allocate a random process into the MMU and MainWindow,
 		 * and stores its name into a processes list for later deallocation.
 		 */
-		public synchronized void allocate()
+		public void allocate()
+		{
+			lockTimed();
+			try
+			{
+				allocateLocked();
+			}
+			catch(InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+		
+		private void allocateLocked() throws InterruptedException
 		{
-			//If there are no more places for the smallest chunk, wait.
-			if(chunkLotto[0] == 0)
-				sleep();
+			//While there are no more places for the smallest chunk, wait.
+			while(running && chunkLotto[0] == 0)
+				spaceAvailable.await();
+			
+			//Stopped while waiting
+			if(!running)
+				return;
 			
 			//magnitude = log2(2^n) for a random possible set of n
 			int magnitude = lottery();
@@ -247,13 +424,14 @@ public class AllocatorDeallocator
 			String processName = "P" + chunkLotto[magnitude] + " : " + magnitude + " : " + processSize;
 			
 			//If process does not exist
-			if(!processes.contains(processName))
+			if(!names.contains(processName))
 			{
 				//Attempt to allocate process
-				if(mw.allocate(processName, processSize))
+				if(place(processName, processSize))
 				{
 					//Add processName to list
 					processes.add(processName);
+					names.add(processName);
 					//Add magnitude for later use
 					processSizes.add(magnitude);
 					//Remove lottos based on magnitude
@@ -262,17 +440,22 @@ public class AllocatorDeallocator
 					//Animation time
 					try
 					{
-						Thread.sleep(msec);
+						if(msec > 0)
+							Thread.sleep(msec);
 					}
 					catch (InterruptedException e)
 					{
 						e.printStackTrace();
 					}
 					
-					//Notify deallocator if there is a new process added to the MMU
-					randomNotify();
+					//Wake a deallocator as there is a new process in the MMU
+					processAvailable.signal();
 				}
 			}
+			
+			//Pass the wake up on if there is still room for another allocator
+			if(chunkLotto[0] != 0)
+				spaceAvailable.signal();
 		}
 		
 		/**
@@ -344,36 +527,62 @@ public class AllocatorDeallocator
 		 * processes that already exist within the MMU and MainWindow and then
 		 * removes them from listing if succcessful.
 		 */
-		public synchronized void deallocate()
+		public void deallocate()
+		{
+			lockTimed();
+			try
+			{
+				deallocateLocked();
+			}
+			catch(InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+		
+		private void deallocateLocked() throws InterruptedException
 		{
-			//If there is enough room to fit the largest chunk, wait.
-			if(chunkLotto[chunkVar - 1] == 1)
-				sleep();
+			//While there are no processes to remove, wait.
+			while(running && processes.isEmpty())
+				processAvailable.await();
+			
+			//Stopped while waiting
+			if(!running)
+				return;
 			
 			//Choose random process
 			int index = rn.nextInt(processes.size());
 			
-			//Take randomly chosen process
-			String process = processes.remove(index);
-			int processSize = processSizes.remove(index);
+			//Take randomly chosen process, moving the last one into its place
+			int last = processes.size() - 1;
+			String process = processes.set(index, processes.get(last));
+			int processSize = processSizes.set(index, processSizes.get(last));
+			processes.remove(last);
+			processSizes.remove(last);
 			
 			//Attempt to deallocate
-			if(mw.deallocate(process))
+			if(remove(process))
 			{
+				names.remove(process);
 				//If successful, renew lottos
 				renewLottos(processSize);
 				
 				//Animation time
 				try
 				{
-					Thread.sleep(msec);
+					if(msec > 0)
+						Thread.sleep(msec);
 				} catch (InterruptedException e)
 				{
 					e.printStackTrace();
 				}
 				
-				//Notify the Allocator that more space has been made
-				randomNotify();
+				//Wake an allocator as more space has been made
+				spaceAvailable.signal();
 			}
 			else
 			{
@@ -381,6 +590,80 @@ public class AllocatorDeallocator
 				processes.add(process);
 				processSizes.add(processSize);
 			}
+			
+			//Pass the wake up on if there is still a process for another deallocator
+			if(!processes.isEmpty())
+				processAvailable.signal();
+		}
+		
+		/**
+		 * Takes the lock, timing how long it took in headless mode.
+		 */
+		private void lockTimed()
+		{
+			if(mw != null)
+			{
+				lock.lock();
+				return;
+			}
+			
+			long start = System.nanoTime();
+			lock.lock();
+			lockWaits.record(System.nanoTime() - start);
+		}
+		
+		/**
+		 * Allocates a process in the MainWindow, or in the bare MMU in headless
+		 * mode, where the call is timed and counted.
+		 * @return true if successful, false if there is no chunk that can fit
+		 */
+		private boolean place(String name, int size)
+		{
+			if(mw != null)
+				return mw.allocate(name, size);
+			
+			long start = System.nanoTime();
+			boolean placed = mmu.allocate(name, size) != null;
+			latencies.record(System.nanoTime() - start);
+			
+			allocations++;
+			if(!placed)
+				failures++;
+			counted();
+			return placed;
+		}
+		
+		/**
+		 * Deallocates a process from the MainWindow, or from the bare MMU in
+		 * headless mode, where the call is timed and counted.
+		 * @return true if successful, false if there is no process by that name
+		 */
+		private boolean remove(String name)
+		{
+			if(mw != null)
+				return mw.deallocate(name);
+			
+			long start = System.nanoTime();
+			boolean removed = mmu.deallocate(name);
+			latencies.record(System.nanoTime() - start);
+			
+			deallocations++;
+			counted();
+			return removed;
+		}
+		
+		/**
+		 * Stops the threads once headless mode reaches either of its limits.
+		 */
+		private void counted()
+		{
+			if(--opsLeft == 0 || System.nanoTime() >= deadline)
+			{
+				finished = System.nanoTime();
+				running = false;
+				spaceAvailable.signalAll();
+				processAvailable.signalAll();
+			}
 		}
 		
 		/**
@@ -416,34 +699,5 @@ public class AllocatorDeallocator
 				}
 			}
 		}
-		
-		/**
-		 * This method randomly notifies threads
-		 */
-		private void randomNotify()
-		{
-			if(rn.nextInt(2) == 0)
-			{
-				notify();
-			}
-		}
-		
-		/**
-		 * This method notifies threads and
-		 * sets the current thread to sleep.
-		 */
-		private void sleep()
-		{
-			notify();
-			
-			try
-			{
-				wait();
-			} 
-			catch (InterruptedException e)
-			{
-				e.printStackTrace();
-			}
-		}
 	}
 }
@@ -0,0 +1,336 @@
+package binarybuddysystem.producerconsumer;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import binarybuddysystem.BuddyAllocator;
+import binarybuddysystem.Handle;
+import binarybuddysystem.MMU;
+import binarybuddysystem.concurrent.LockFreeMMU;
+import binarybuddysystem.concurrent.StripedMMU;
+
+/**
+ * This class simulates many clients sharing one allocator, like the request
+ * handlers of a server that each grab a buffer, hold it while they work and
+ * give it back.
+ *
+ * Each client gets its own virtual thread running an allocate/hold/free loop.
+ * Virtual threads are looked up by reflection, so this also runs on a Java
+ * without them; there every client is a small state machine stepped by a
+ * scheduled pool of platform threads, with the hold as a scheduled delay.
+ *
+ * The allocator is a plain MMU behind a single lock, a StripedMMU or a
+ * LockFreeMMU. The lock is a ReentrantLock rather than synchronized, which
+ * would pin a virtual thread to its carrier while it waits, and so are the
+ * locks of the shared latency histograms.
+ *
+ * Usage: java binarybuddysystem.producerconsumer.ClientSimulation
+ * 	[mmu|striped|lockfree] [MMUSize ChunkSize MaxBytes HoldMicros Seconds]
+ */
+public class ClientSimulation
+{
+	//Client counts run by main
+	private static final int[] CLIENTS = {10, 100, 1000, 10000, 100000};
+	//Latencies are counted in this many histograms, picked by client
+	private static final int STRIPES = 64;
+
+	private String kind;
+	private int memorySize;
+	private int minChunk;
+	private int maxBytes;
+	private long holdNanos;
+
+	//State of the current run
+	private BuddyAllocator allocator;
+	private ReentrantLock lock;		//Guards a plain MMU, null for the thread safe ones
+	private volatile boolean running;
+	private ScheduledExecutorService scheduler;
+	private LatencyHistogram[] latencies;
+	private ReentrantLock[] latencyLocks;	//One per histogram
+	private LongAdder allocations = new LongAdder();
+	private LongAdder failures = new LongAdder();
+	private LongAdder frees = new LongAdder();
+
+	/**
+	 * constructor for ClientSimulation
+	 * @param kind allocator to share: "mmu", "striped" or "lockfree"
+	 * @param memorySize total memory size in bytes (2^n)
+	 * @param minChunk minimum chunk size in bytes (2^k)
+	 * @param maxBytes largest buffer a client asks for, sizes are picked evenly from 1 to it
+	 * @param holdNanos longest time a client holds its buffer, picked evenly from 0 to it
+	 */
+	public ClientSimulation(String kind, int memorySize, int minChunk, int maxBytes, long holdNanos)
+	{
+		if(!kind.equals("mmu") && !kind.equals("striped") && !kind.equals("lockfree"))
+			throw new IllegalArgumentException("Unknown allocator " + kind);
+
+		this.kind = kind;
+		this.memorySize = memorySize;
+		this.minChunk = minChunk;
+		this.maxBytes = maxBytes;
+		this.holdNanos = holdNanos;
+	}
+
+	/**
+	 * @return true if clients run on virtual threads, false if this Java has none
+	 */
+	public static boolean hasVirtualThreads()
+	{
+		ExecutorService executor = virtualThreads();
+		if(executor == null)
+			return false;
+
+		executor.shutdown();
+		return true;
+	}
+
+	/**
+	 * Runs clients against a new allocator.
+	 * @param clients number of clients
+	 * @param millis time to run for (msec), after all clients are started
+	 * @return the throughput, failure rate and latencies of the run
+	 * @throws InterruptedException
+	 */
+	public String run(int clients, long millis) throws InterruptedException
+	{
+		if(kind.equals("mmu"))
+		{
+			allocator = new MMU(memorySize, minChunk);
+			lock = new ReentrantLock();
+		}
+		else
+		{
+			allocator = kind.equals("striped") ? new StripedMMU(memorySize, minChunk, stripes())
+					: new LockFreeMMU(memorySize, minChunk);
+			lock = null;
+		}
+
+		latencies = new LatencyHistogram[STRIPES];
+		latencyLocks = new ReentrantLock[STRIPES];
+		for(int i = 0; i < STRIPES; i++)
+		{
+			latencies[i] = new LatencyHistogram();
+			latencyLocks[i] = new ReentrantLock();
+		}
+		allocations.reset();
+		failures.reset();
+		frees.reset();
+		running = true;
+
+		//Start the clients
+		ExecutorService executor = virtualThreads();
+		boolean virtual = executor != null;
+		if(virtual)
+		{
+			for(int i = 0; i < clients; i++)
+				executor.execute(new Client(i)::loop);
+		}
+		else
+		{
+			scheduler = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
+			executor = scheduler;
+			for(int i = 0; i < clients; i++)
+				scheduler.execute(new Client(i)::step);
+		}
+
+		//Only count what happens once they are all going
+		long startOps = allocations.sum() + frees.sum();
+		long start = System.nanoTime();
+		Thread.sleep(millis);
+		long ops = allocations.sum() + frees.sum() - startOps;
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		running = false;
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+
+		LatencyHistogram all = new LatencyHistogram();
+		for(LatencyHistogram h : latencies)
+			all.add(h);
+
+		long tried = allocations.sum();
+		return String.format("%8d clients %-8s %12.0f ops/sec  failed %6.2f%%  p50 %9.2fus  p99 %9.2fus"
+				+ "  p99.9 %9.2fus  max %9.2fus",
+				clients, virtual ? "virtual" : "pooled", ops / seconds,
+				tried == 0 ? 0 : 100.0 * failures.sum() / tried, all.getPercentile(50) / 1e3,
+				all.getPercentile(99) / 1e3, all.getPercentile(99.9) / 1e3, all.getMax() / 1e3);
+	}
+
+	/**
+	 * @return stripes for a StripedMMU: a few per processor, no more than the chunks
+	 */
+	private int stripes()
+	{
+		int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 4));
+		return Math.min(stripes, memorySize / minChunk);
+	}
+
+	/**
+	 * Looks up Executors.newVirtualThreadPerTaskExecutor, which is only there from Java 21
+	 * @return a new executor with a virtual thread per task, null if there are none
+	 */
+	private static ExecutorService virtualThreads()
+	{
+		try
+		{
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		}
+		catch(ReflectiveOperationException | RuntimeException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * A client, asking for a buffer, holding it for a while and freeing it, again
+	 * and again until the run stops. A buffer that doesn't fit is waited out
+	 * like one that did, so a full allocator isn't hammered.
+	 */
+	private class Client
+	{
+		private LatencyHistogram latency;
+		private ReentrantLock latencyLock;
+		private long handle = Handle.NONE;
+		private boolean holding;
+
+		Client(int id)
+		{
+			latency = latencies[id % STRIPES];
+			latencyLock = latencyLocks[id % STRIPES];
+		}
+
+		/**
+		 * Runs the client on its own (virtual) thread.
+		 */
+		void loop()
+		{
+			while(running)
+			{
+				acquire();
+				LockSupport.parkNanos(hold());
+				release();
+			}
+		}
+
+		/**
+		 * Runs half a turn of the client on the scheduler, then schedules the other half.
+		 */
+		void step()
+		{
+			if(!running)
+				return;
+
+			if(holding)
+				release();
+			else
+				acquire();
+			holding = !holding;
+
+			try
+			{
+				scheduler.schedule(this::step, holding ? hold() : 0, TimeUnit.NANOSECONDS);
+			}
+			catch(RejectedExecutionException e)
+			{
+				//Stopped while this step ran
+			}
+		}
+
+		private void acquire()
+		{
+			int bytes = 1 + ThreadLocalRandom.current().nextInt(maxBytes);
+
+			long start = System.nanoTime();
+			if(lock != null)
+				lock.lock();
+			try
+			{
+				handle = allocator.allocate(bytes);
+			}
+			finally
+			{
+				if(lock != null)
+					lock.unlock();
+			}
+			record(System.nanoTime() - start);
+
+			allocations.increment();
+			if(handle == Handle.NONE)
+				failures.increment();
+		}
+
+		private void release()
+		{
+			if(handle == Handle.NONE)
+				return;
+
+			long start = System.nanoTime();
+			if(lock != null)
+				lock.lock();
+			try
+			{
+				allocator.free(handle);
+			}
+			finally
+			{
+				if(lock != null)
+					lock.unlock();
+			}
+			record(System.nanoTime() - start);
+
+			handle = Handle.NONE;
+			frees.increment();
+		}
+
+		private long hold()
+		{
+			return holdNanos == 0 ? 0 : ThreadLocalRandom.current().nextLong(holdNanos + 1);
+		}
+
+		private void record(long nanos)
+		{
+			latencyLock.lock();
+			try
+			{
+				latency.record(nanos);
+			}
+			finally
+			{
+				latencyLock.unlock();
+			}
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException
+	{
+		if(args.length > 1 && args.length != 6)
+		{
+			System.err.println("Usage: ClientSimulation [mmu|striped|lockfree] [MMUSize ChunkSize MaxBytes HoldMicros Seconds]");
+			System.exit(0);
+		}
+
+		String kind = args.length > 0 ? args[0] : "mmu";
+		int memSize = args.length > 1 ? Integer.parseInt(args[1]) : 1 << 28;
+		int chunkSize = args.length > 1 ? Integer.parseInt(args[2]) : 64;
+		int maxBytes = args.length > 1 ? Integer.parseInt(args[3]) : 4096;
+		long holdMicros = args.length > 1 ? Long.parseLong(args[4]) : 1000;
+		long seconds = args.length > 1 ? Long.parseLong(args[5]) : 2;
+
+		System.out.println("Clients on " + kind + ". MMU Size: " + memSize + " | Chunk Size: " + chunkSize
+				+ " | Max Bytes: " + maxBytes + " | Hold: " + holdMicros + " usec | "
+				+ (hasVirtualThreads() ? "virtual threads" : "no virtual threads, scheduled pool"));
+
+		ClientSimulation simulation = new ClientSimulation(kind, memSize, chunkSize, maxBytes, holdMicros * 1000);
+		for(int clients : CLIENTS)
+			System.out.println(simulation.run(clients, seconds * 1000));
+	}
+}
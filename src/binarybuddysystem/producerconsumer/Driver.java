@@ -14,6 +14,20 @@ import binarybuddysystem.view.MainWindow;
  * 	4. Speed of Allocator/Deallocation (msec) [default: 30] (If not automated, will not be there)
  * 	5. Viewer chunk size 	[default: 1 (extends if smaller than default viewer size)]
  * 
+ * In stress mode there is no viewer: the automated allocator/deallocator runs
+ * against a bare MMU at full speed and prints its throughput, allocation failure
+ * rate and latency percentiles. Its arguments are:
+ * 	1. stress
+ * 	2. MMU Size				[default: 1048576]
+ * 	3. Minimum Chunk Size	[default: 64]
+ * 	4. Operations to run, or seconds to run for when followed by s	[default: 10s]
+ * 	5. Allocator threads	[default: 1]
+ * 	6. Deallocator threads	[default: 1]
+ * 
+ * In clients mode there is no viewer either: thousands of simulated clients
+ * share an allocator, each on its own virtual thread (see ClientSimulation),
+ * which takes the same arguments as ClientSimulation after clients.
+ * 
  * The metric of the MMU size (bit, byte, KB) does not matter so long
  * as it correlates with the minimum Chunk size
  * @author John Bucknam
@@ -21,13 +35,29 @@ import binarybuddysystem.view.MainWindow;
  */
 public class Driver
 {
-	public static void main(String[] args)
+	public static void main(String[] args) throws InterruptedException
 	{
+		if(args.length != 0 && (args[0].equalsIgnoreCase("clients") || args[0].equalsIgnoreCase("c")))
+		{
+			String[] rest = new String[args.length - 1];
+			System.arraycopy(args, 1, rest, 0, rest.length);
+			ClientSimulation.main(rest);
+			return;
+		}
+		
+		if(args.length != 0 && (args[0].equalsIgnoreCase("stress") || args[0].equalsIgnoreCase("s")))
+		{
+			stress(args);
+			return;
+		}
+		
 		if(args.length == 2 || args.length > 5)
 		{
 			System.err.println("ERROR: Invalid number of arguments");
 			System.err.println("Auto Args: auto MMUSize ChunkSize animTime VChunkSize");
 			System.err.println("Manual Args: manual MMUSize ChunkSize VChunkSize");
+			System.err.println("Stress Args: stress MMUSize ChunkSize Ops|Seconds s Allocators Deallocators");
+			System.err.println("Clients Args: clients mmu|striped|lockfree MMUSize ChunkSize MaxBytes HoldMicros Seconds");
 			System.exit(0);
 		}
 		
@@ -97,6 +127,68 @@ public class Driver
 		}
 	}
 	
+	/**
+	 * This method runs stress mode and prints its results.
+	 * @param args
+	 */
+	public static void stress(String[] args)
+	{
+		if(args.length != 1 && args.length != 3 && args.length != 4 && args.length != 6)
+		{
+			System.err.println("ERROR: Invalid number of arguments");
+			System.err.println("Stress Args: stress MMUSize ChunkSize Ops|Seconds s Allocators Deallocators");
+			System.exit(0);
+		}
+		
+		int memSize = 1048576;
+		int chunkSize = 64;
+		long ops = 0;
+		long millis = 10000;
+		int allocators = 1;
+		int deallocators = 1;
+		
+		if(args.length > 1)
+		{
+			//The limit is a count of operations, or of seconds with an s after it
+			boolean seconds = args.length >= 4 && args[3].toLowerCase().endsWith("s");
+			String[] sizes = args.clone();
+			if(seconds)
+				sizes[3] = args[3].substring(0, args[3].length() - 1);
+			
+			int[] argConvert = testArgs(sizes);
+			if(argConvert == null)
+				System.exit(0);
+			
+			memSize = argConvert[0];
+			chunkSize = argConvert[1];
+			if(args.length >= 4)
+			{
+				ops = seconds ? 0 : argConvert[2];
+				millis = seconds ? argConvert[2] * 1000L : 0;
+			}
+			if(args.length == 6)
+			{
+				allocators = argConvert[3];
+				deallocators = argConvert[4];
+			}
+		}
+		
+		System.out.println("Stress. MMU Size: " + memSize + " | Chunk Size: " + chunkSize + " | "
+				+ (ops > 0 ? ops + " ops" : millis / 1000 + " sec") + " | Threads: " + allocators + "/" + deallocators);
+		
+		AllocatorDeallocator workload = AllocatorDeallocator.headless(memSize, chunkSize, allocators, deallocators,
+				ops, millis);
+		try
+		{
+			workload.await();
+		}
+		catch(InterruptedException e)
+		{
+			e.printStackTrace();
+		}
+		System.out.print(workload);
+	}
+	
 	/**
 	 * This method tests the command line input to confirm it is
 	 * usable for this program.
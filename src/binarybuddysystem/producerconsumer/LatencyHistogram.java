@@ -0,0 +1,131 @@
+package binarybuddysystem.producerconsumer;
+
+/**
+ * Counts latencies in buckets whose width grows with the latency, so that any
+ * number of samples takes the same small amount of memory and percentiles
+ * come out within about 3% of the real value.
+ *
+ * Each power of 2 is split into 16 buckets. It is not thread safe: give each
+ * thread its own and add them together at the end.
+ */
+public class LatencyHistogram
+{
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private long[] counts = new long[64 * SUB_BUCKETS];
+	private long total;
+	private long max;
+	private long sum;
+
+	/**
+	 * Counts one sample
+	 * @param nanos latency, in nanoseconds
+	 */
+	public void record(long nanos)
+	{
+		if(nanos < 0)
+			nanos = 0;
+		counts[bucket(nanos)]++;
+		total++;
+		sum += nanos;
+		if(nanos > max)
+			max = nanos;
+	}
+
+	/**
+	 * Adds the samples of another histogram to this one
+	 */
+	public void add(LatencyHistogram other)
+	{
+		for(int i = 0; i < counts.length; i++)
+			counts[i] += other.counts[i];
+		total += other.total;
+		sum += other.sum;
+		max = Math.max(max, other.max);
+	}
+
+	/**
+	 * @return the number of samples
+	 */
+	public long getCount()
+	{
+		return total;
+	}
+
+	/**
+	 * @return the mean latency in nanoseconds, 0 if there are no samples
+	 */
+	public double getMean()
+	{
+		return total == 0 ? 0 : (double) sum / total;
+	}
+
+	/**
+	 * @return the largest latency in nanoseconds
+	 */
+	public long getMax()
+	{
+		return max;
+	}
+
+	/**
+	 * Gets a percentile
+	 * @param percent 0 to 100
+	 * @return the latency in nanoseconds that that many percent of the samples are at or below,
+	 * rounded to the middle of its bucket, 0 if there are no samples
+	 */
+	public long getPercentile(double percent)
+	{
+		if(total == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(total * percent / 100));
+		long seen = 0;
+		for(int i = 0; i < counts.length; i++)
+		{
+			seen += counts[i];
+			if(seen >= rank)
+				return Math.min(middle(i), max);
+		}
+
+		return max;
+	}
+
+	/**
+	 * @return the count, mean and usual percentiles, in microseconds
+	 */
+	public String toString()
+	{
+		return String.format("n=%d mean=%.2fus p50=%.2fus p90=%.2fus p99=%.2fus p99.9=%.2fus max=%.2fus",
+				total, getMean() / 1e3, getPercentile(50) / 1e3, getPercentile(90) / 1e3,
+				getPercentile(99) / 1e3, getPercentile(99.9) / 1e3, max / 1e3);
+	}
+
+	/**
+	 * Values below 16 get a bucket each, above that the 4 bits after the
+	 * highest one pick the bucket within its power of 2
+	 */
+	private static int bucket(long value)
+	{
+		if(value < SUB_BUCKETS)
+			return (int) value;
+
+		int high = 63 - Long.numberOfLeadingZeros(value);
+		int shift = high - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * @return the value in the middle of a bucket
+	 */
+	private static long middle(int bucket)
+	{
+		if(bucket < SUB_BUCKETS)
+			return bucket;
+
+		int shift = bucket / SUB_BUCKETS - 1;
+		long low = ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS)) << shift;
+		return low + (1L << shift) / 2;
+	}
+}
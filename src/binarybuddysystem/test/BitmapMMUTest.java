@@ -0,0 +1,103 @@
+package binarybuddysystem.test;
+
+import static org.junit.Assert.*;
+import binarybuddysystem.BitmapMMU;
+import binarybuddysystem.Handle;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BitmapMMUTest
+{
+	BitmapMMU testMMU;
+
+	@Before
+	public void setUp()
+	{
+		testMMU = new BitmapMMU(1024, 64);
+	}
+
+	/**
+	 * This test checks that blocks are rounded up to the best fitting chunk
+	 * size and that the MMU refuses processes once it is filled.
+	 */
+	@Test
+	public void AllocTest1()
+	{
+		long p0 = testMMU.allocate(32);		//1 chunk
+		long p2 = testMMU.allocate(65);		//2 chunks
+		long p3 = testMMU.allocate(129);	//4 chunks
+		long p5 = testMMU.allocate(257);	//8 chunks
+
+		assertEquals(1, Handle.chunks(p0));
+		assertEquals(2, Handle.chunks(p2));
+		assertEquals(4, Handle.chunks(p3));
+		assertEquals(8, Handle.chunks(p5));
+		assertEquals(4, testMMU.getSize((int) Handle.index(p3)));
+
+		//Only a single chunk is left
+		assertEquals(Handle.NONE, testMMU.allocate(65));
+		assertNotEquals(Handle.NONE, testMMU.allocate(2));
+		assertEquals(Handle.NONE, testMMU.allocate(2));
+
+		//Larger than the whole memory
+		assertEquals(Handle.NONE, testMMU.allocate(2048));
+	}
+
+	/**
+	 * This test confirms that only buddies merge and that merging is
+	 * recursive, the same as AllocDeallocTest3 in MMUTest.
+	 */
+	@Test
+	public void AllocDeallocTest1()
+	{
+		long[] p = new long[16];
+		for(int i = 0; i < 16; i++)
+		{
+			p[i] = testMMU.allocate(64);
+			assertEquals(i, Handle.index(p[i]));
+		}
+
+		//Freeing neighbours that are not buddies (1 and 2, 5 and 6, ...)
+		for(int i = 1; i < 16; i += 4)
+		{
+			assertTrue(testMMU.free(p[i]));
+			assertTrue(testMMU.free(p[i + 1]));
+		}
+		assertEquals(Handle.NONE, testMMU.allocate(128));
+
+		//0 and 1 are buddies
+		assertTrue(testMMU.free(p[0]));
+		long two = testMMU.allocate(128);
+		assertEquals(0, Handle.index(two));
+		assertTrue(testMMU.free(two));
+
+		//Freeing everything else merges back to the whole memory
+		for(int i = 3; i < 16; i += 4)
+		{
+			assertTrue(testMMU.free(p[i]));
+			if(i + 1 < 16)
+				assertTrue(testMMU.free(p[i + 1]));
+		}
+		assertEquals(Handle.encode(0, 4), testMMU.allocate(1024));
+	}
+
+	/**
+	 * This test checks that only the handle of an allocated block can be
+	 * freed, and only once.
+	 */
+	@Test
+	public void FreeTest()
+	{
+		long p = testMMU.allocate(256);
+
+		assertFalse(testMMU.free(Handle.encode(Handle.index(p) + 1, 2)));
+		assertFalse(testMMU.free(Handle.encode(Handle.index(p), 1)));
+		assertFalse(testMMU.free(Handle.NONE));
+		assertFalse(testMMU.free(Handle.encode(16, 0)));
+		assertTrue(testMMU.free(p));
+		assertFalse(testMMU.free(p));
+		assertTrue(testMMU.isHole(0));
+		assertEquals(16, testMMU.getSize(0));
+	}
+}
@@ -0,0 +1,172 @@
+package binarybuddysystem.test;
+
+import static org.junit.Assert.*;
+import binarybuddysystem.BuddyAllocator;
+import binarybuddysystem.Handle;
+import binarybuddysystem.concurrent.ArenaSet;
+import binarybuddysystem.concurrent.LockFreeMMU;
+import binarybuddysystem.concurrent.MagazineCache;
+import binarybuddysystem.concurrent.StripedMMU;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class ConcurrentMMUTest
+{
+	static final int MEMORY = 1 << 16;
+	static final int CHUNK = 64;
+	static final int THREADS = 8;
+	static final int OPS = 20000;
+
+	/**
+	 * This test has several threads allocating and freeing at once, checking
+	 * that no chunk is ever handed to two blocks, and that everything merges
+	 * back into one block once all of it is freed.
+	 */
+	@Test(timeout = 20000)
+	public void StripedTest() throws InterruptedException
+	{
+		StripedMMU mmu = new StripedMMU(MEMORY, CHUNK, 8);
+		hammer(mmu);
+
+		//Blocks bigger than a stripe take whole stripes
+		long big = mmu.allocate(MEMORY / 2);
+		assertEquals(9, Handle.order(big));
+		assertNotEquals(Handle.NONE, mmu.allocate(MEMORY / 4));
+		assertEquals(Handle.NONE, mmu.allocate(MEMORY / 2));
+		assertFalse(mmu.free(Handle.encode(Handle.index(big), 7)));
+		assertTrue(mmu.free(big));
+		assertFalse(mmu.free(big));
+
+		//Blocks bigger than the memory are refused without leaving stripes locked
+		assertFalse(mmu.free(Handle.encode(0, 20)));
+		assertFalse(mmu.free(Handle.encode(0, 63)));
+		assertNotEquals(Handle.NONE, mmu.allocate(CHUNK));
+	}
+
+	/**
+	 * The same as StripedTest, for the allocator without locks.
+	 */
+	@Test
+	public void LockFreeTest() throws InterruptedException
+	{
+		LockFreeMMU mmu = new LockFreeMMU(MEMORY, CHUNK);
+		hammer(mmu);
+
+		long a = mmu.allocate(CHUNK);
+		assertFalse(mmu.free(Handle.encode(Handle.index(a), 1)));
+		assertTrue(mmu.free(a));
+		assertFalse(mmu.free(a));
+	}
+
+	/**
+	 * The same as StripedTest, with thread caches in front of the allocator.
+	 * Each thread flushes its cache when it is done.
+	 */
+	@Test
+	public void MagazineTest() throws InterruptedException
+	{
+		MagazineCache cache = new MagazineCache(new LockFreeMMU(MEMORY, CHUNK), 3, 8);
+		hammer(cache);
+
+		//Repeat frees and allocations of a size stay in the thread's cache
+		long a = cache.allocate(CHUNK);
+		assertTrue(cache.free(a));
+		assertEquals(a, cache.allocate(CHUNK));
+	}
+
+	/**
+	 * The same as StripedTest, with the memory split over independent arenas.
+	 */
+	@Test
+	public void ArenaSetTest() throws InterruptedException
+	{
+		ArenaSet arenas = new ArenaSet(4, MEMORY / 4, CHUNK, false);
+		hammer(arenas);
+
+		//A full home arena falls back to the others
+		long[] quarters = new long[4];
+		for(int i = 0; i < 4; i++)
+			quarters[i] = arenas.allocate(MEMORY / 4);
+		assertEquals(Handle.NONE, arenas.allocate(CHUNK));
+		for(int i = 0; i < 4; i++)
+			assertEquals(1.0, arenas.getOccupancy(i), 0);
+		for(int i = 0; i < 4; i++)
+			assertTrue(arenas.free(quarters[i]));
+		assertEquals(0, arenas.getReserved(0));
+	}
+
+	/**
+	 * Runs random allocations and frees on an allocator from several threads,
+	 * then checks that it is whole again.
+	 * @param mmu an empty allocator
+	 */
+	static void hammer(final BuddyAllocator mmu) throws InterruptedException
+	{
+		final AtomicIntegerArray owner = new AtomicIntegerArray(MEMORY / CHUNK);
+		final AtomicReference<String> error = new AtomicReference<String>();
+		Thread[] threads = new Thread[THREADS];
+
+		for(int t = 0; t < THREADS; t++)
+		{
+			final int id = t + 1;
+			threads[t] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					Random rn = new Random(id);
+					ArrayList<Long> held = new ArrayList<Long>();
+
+					for(int op = 0; op < OPS && error.get() == null; op++)
+					{
+						if(held.size() < 16 && rn.nextInt(3) != 0)
+						{
+							long h = mmu.allocate(1 + rn.nextInt(CHUNK << rn.nextInt(6)));
+							if(h == Handle.NONE)
+								continue;
+
+							for(long c = Handle.index(h); c < Handle.index(h) + Handle.chunks(h); c++)
+								if(!owner.compareAndSet((int) c, 0, id))
+									error.compareAndSet(null, "Chunk " + c + " handed out twice");
+							held.add(h);
+						}
+						else if(!held.isEmpty())
+						{
+							long h = held.remove(rn.nextInt(held.size()));
+							for(long c = Handle.index(h); c < Handle.index(h) + Handle.chunks(h); c++)
+								owner.set((int) c, 0);
+							if(!mmu.free(h))
+								error.compareAndSet(null, "Failed to free " + Handle.toString(h));
+						}
+					}
+
+					for(long h : held)
+					{
+						for(long c = Handle.index(h); c < Handle.index(h) + Handle.chunks(h); c++)
+							owner.set((int) c, 0);
+						if(!mmu.free(h))
+							error.compareAndSet(null, "Failed to free " + Handle.toString(h));
+					}
+
+					if(mmu instanceof MagazineCache)
+						((MagazineCache) mmu).flush();
+				}
+			};
+			threads[t].start();
+		}
+
+		for(Thread t : threads)
+			t.join();
+
+		assertNull(error.get(), error.get());
+
+		long all = mmu.allocate(mmu.getMemorySize());
+		assertEquals(Integer.numberOfTrailingZeros(mmu.getMemorySize() / CHUNK), Handle.order(all));
+		assertTrue(mmu.free(all));
+	}
+}
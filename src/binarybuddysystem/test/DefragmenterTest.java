@@ -0,0 +1,81 @@
+package binarybuddysystem.test;
+
+import static org.junit.Assert.*;
+import binarybuddysystem.Defragmenter;
+import binarybuddysystem.Handle;
+import binarybuddysystem.MMU;
+
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DefragmenterTest
+{
+	MMU testMMU;
+	HashMap<Long, Long> moved;
+	Defragmenter defrag;
+
+	@Before
+	public void setUp()
+	{
+		testMMU = new MMU(1024, 64, true);
+		moved = new HashMap<Long, Long>();
+		defrag = new Defragmenter(testMMU, (from, to) -> moved.put(from, to));
+
+		//Every other chunk is in use, so no hole is bigger than a chunk
+		for(int i = 0; i < 16; i++)
+		{
+			long handle = testMMU.allocate(64);
+			testMMU.buffer(handle).putInt(0, i);
+		}
+		for(int i = 1; i < 16; i += 2)
+			testMMU.free(Handle.encode(i, 0));
+	}
+
+	/**
+	 * This test checks that the blocks are packed at the start of the memory,
+	 * with their memory, and that every move is reported.
+	 */
+	@Test
+	public void CompactTest()
+	{
+		assertEquals(64, testMMU.getLargestFree());
+		assertEquals(Handle.NONE, testMMU.allocate(512));
+
+		assertEquals(7, defrag.runAll());
+		assertTrue(defrag.isFinished());
+		assertEquals(512, testMMU.getLargestFree());
+
+		//The block from chunk 2i is now at chunk i
+		assertEquals(7, moved.size());
+		for(int i = 1; i < 8; i++)
+		{
+			long to = moved.get(Handle.encode(2 * i, 0));
+			assertEquals(Handle.encode(i, 0), to);
+			assertEquals(2 * i, testMMU.buffer(to).getInt(0));
+		}
+
+		assertNotEquals(Handle.NONE, testMMU.allocate(512));
+		assertEquals(0, defrag.run(Long.MAX_VALUE));
+	}
+
+	/**
+	 * This test checks that compacting stops when its time is up, and carries
+	 * on where it stopped.
+	 */
+	@Test
+	public void SliceTest()
+	{
+		assertEquals(0, defrag.run(0));
+		assertFalse(defrag.isFinished());
+
+		int moves = 0;
+		while(!defrag.isFinished())
+			moves += defrag.run(1);
+
+		assertEquals(7, moves);
+		assertEquals(7, defrag.getMoves());
+		assertEquals(512, testMMU.getLargestFree());
+	}
+}
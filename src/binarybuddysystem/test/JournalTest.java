@@ -0,0 +1,329 @@
+package binarybuddysystem.test;
+
+import static org.junit.Assert.*;
+import binarybuddysystem.Handle;
+import binarybuddysystem.Journal;
+import binarybuddysystem.MMU;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JournalTest
+{
+	File checkpointFile;
+	File logFile;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		checkpointFile = File.createTempFile("buddy", ".snap");
+		checkpointFile.delete();
+		logFile = File.createTempFile("buddy", ".log");
+		logFile.delete();
+	}
+
+	@After
+	public void tearDown()
+	{
+		checkpointFile.delete();
+		logFile.delete();
+	}
+
+	/**
+	 * This test shows that the MMU comes back from the log alone, and after a
+	 * checkpoint from the checkpoint and only the log written since.
+	 */
+	@Test
+	public void ReplayTest() throws IOException
+	{
+		Journal journal = new Journal(checkpointFile, logFile, 1024, 64, 4, Long.MAX_VALUE);
+		MMU mmu = journal.getMMU();
+		long a = mmu.allocate(129);
+		mmu.allocate("Process 0", 32);
+		long b = mmu.allocate(65);
+		assertTrue(mmu.free(a));
+		journal.close();
+
+		journal = new Journal(checkpointFile, logFile, 1024, 64, 4, Long.MAX_VALUE);
+		assertEquals(4, journal.getReplayed());
+		assertEquals(mmu.toString(), journal.getMMU().toString());
+		assertNotNull(journal.getMMU().getProcess("Process 0"));
+
+		//Only what comes after the checkpoint is replayed
+		mmu = journal.getMMU();
+		journal.checkpoint();
+		assertTrue(mmu.deallocate("Process 0"));
+		assertEquals(Handle.encode(8, 3), mmu.reallocate(b, 300));
+		journal.close();
+
+		journal = new Journal(checkpointFile, logFile, 1024, 64, 4, Long.MAX_VALUE);
+		assertEquals(3, journal.getReplayed());
+		assertEquals(mmu.toString(), journal.getMMU().toString());
+		assertNull(journal.getMMU().getProcess("Process 0"));
+		journal.close();
+	}
+
+	/**
+	 * This test shows that a crash loses only the group that wasn't written
+	 * yet, and that a torn group at the end of the log is dropped.
+	 */
+	@Test
+	public void CrashTest() throws IOException
+	{
+		Journal journal = new Journal(checkpointFile, logFile, 1024, 64, 2, Long.MAX_VALUE);
+		MMU mmu = journal.getMMU();
+		mmu.allocate(64);
+		mmu.allocate(64);
+		String committed = mmu.toString();
+		mmu.allocate(512);
+
+		//Half a group of garbage, as if the machine went down while writing it
+		try(FileOutputStream out = new FileOutputStream(logFile, true))
+		{
+			out.write(new byte[] {0, 0, 0, 40, 1, 2, 3});
+		}
+
+		Journal recovered = new Journal(checkpointFile, logFile, 1024, 64, 2, Long.MAX_VALUE);
+		assertEquals(2, recovered.getReplayed());
+		assertEquals(committed, recovered.getMMU().toString());
+
+		//The log goes on from the last good group
+		recovered.getMMU().allocate(256);
+		recovered.close();
+		recovered = new Journal(checkpointFile, logFile, 1024, 64, 2, Long.MAX_VALUE);
+		assertEquals(3, recovered.getReplayed());
+		recovered.close();
+		journal.close();
+	}
+
+	/**
+	 * This test shows that a group is written once its window is up, even if
+	 * no other request comes along.
+	 */
+	@Test
+	public void WindowTest() throws IOException, InterruptedException
+	{
+		Journal journal = new Journal(checkpointFile, logFile, 1024, 64, 100, 20000000L);
+		journal.getMMU().allocate(64);
+
+		//The timer writes the group while the journal is still open
+		Thread.sleep(500);
+		Journal other = new Journal(checkpointFile, logFile, 1024, 64, 100, Long.MAX_VALUE);
+		assertEquals(1, other.getReplayed());
+		other.close();
+		journal.close();
+	}
+
+	/**
+	 * This test shows that a log that can't be written fails the request only
+	 * after the MMU is done with it, so the block is allocated and named.
+	 */
+	@Test
+	public void FailedWriteTest() throws IOException
+	{
+		FailingChannel channel = new FailingChannel(logFile, Integer.MAX_VALUE);
+		Journal journal = new Journal(checkpointFile, channel, 1024, 64, 1, Long.MAX_VALUE);
+		MMU mmu = journal.getMMU();
+		try
+		{
+			try
+			{
+				mmu.allocate("Process 0", 100);
+				fail("The log can't be written");
+			}
+			catch(UncheckedIOException e)
+			{
+			}
+
+			assertNotNull(mmu.getProcess("Process 0"));
+			assertEquals(128, mmu.getReservedBytes());
+
+			//Removing it fails the same way, and leaves it removed
+			try
+			{
+				mmu.deallocate("Process 0");
+				fail("The log can't be written");
+			}
+			catch(UncheckedIOException e)
+			{
+			}
+			assertNull(mmu.getProcess("Process 0"));
+			assertEquals(0, mmu.getReservedBytes());
+			assertEquals(1024, mmu.getLargestFree());
+
+			channel.failures = 0;
+		}
+		finally
+		{
+			journal.close();
+		}
+
+		//Both requests were kept and written once the log worked again
+		journal = new Journal(checkpointFile, logFile, 1024, 64, 1, Long.MAX_VALUE);
+		assertEquals(2, journal.getReplayed());
+		assertEquals(mmu.toString(), journal.getMMU().toString());
+		journal.close();
+	}
+
+	/**
+	 * This test shows that a group that failed to be written, even halfway, is
+	 * written whole with the next one, so the log can still be replayed.
+	 */
+	@Test
+	public void RetryTest() throws IOException
+	{
+		Journal journal = new Journal(checkpointFile, new FailingChannel(logFile, 1), 1024, 64, 1, Long.MAX_VALUE);
+		MMU mmu = journal.getMMU();
+		try
+		{
+			mmu.allocate("A", 100);
+			fail("The log can't be written");
+		}
+		catch(UncheckedIOException e)
+		{
+		}
+
+		long a = mmu.allocate(64);
+		assertNotEquals(Handle.NONE, a);
+		assertTrue(mmu.deallocate("A"));
+		journal.close();
+
+		journal = new Journal(checkpointFile, logFile, 1024, 64, 1, Long.MAX_VALUE);
+		assertEquals(3, journal.getReplayed());
+		assertEquals(mmu.toString(), journal.getMMU().toString());
+		assertTrue(journal.getMMU().free(a));
+		journal.close();
+	}
+
+	/**
+	 * A log whose next few writes get only part of the way out and then fail
+	 */
+	private static class FailingChannel extends FileChannel
+	{
+		private FileChannel file;
+		int failures;			//Writes left to fail
+
+		FailingChannel(File log, int failures) throws IOException
+		{
+			file = new RandomAccessFile(log, "rw").getChannel();
+			this.failures = failures;
+		}
+
+		private void fail(ByteBuffer src) throws IOException
+		{
+			if(failures == 0)
+				return;
+
+			failures--;
+			if(src.remaining() > 1)
+			{
+				ByteBuffer part = src.duplicate();
+				part.limit(part.position() + part.remaining() / 2);
+				file.write(part);
+			}
+			throw new IOException("Disk full");
+		}
+
+		public int read(ByteBuffer dst) throws IOException
+		{
+			return file.read(dst);
+		}
+
+		public long read(ByteBuffer[] dsts, int offset, int length) throws IOException
+		{
+			return file.read(dsts, offset, length);
+		}
+
+		public int write(ByteBuffer src) throws IOException
+		{
+			fail(src);
+			return file.write(src);
+		}
+
+		public long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+		{
+			fail(srcs[offset]);
+			return file.write(srcs, offset, length);
+		}
+
+		public long position() throws IOException
+		{
+			return file.position();
+		}
+
+		public FileChannel position(long newPosition) throws IOException
+		{
+			file.position(newPosition);
+			return this;
+		}
+
+		public long size() throws IOException
+		{
+			return file.size();
+		}
+
+		public FileChannel truncate(long size) throws IOException
+		{
+			file.truncate(size);
+			return this;
+		}
+
+		public void force(boolean metaData) throws IOException
+		{
+			file.force(metaData);
+		}
+
+		public long transferTo(long position, long count, WritableByteChannel target) throws IOException
+		{
+			return file.transferTo(position, count, target);
+		}
+
+		public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException
+		{
+			return file.transferFrom(src, position, count);
+		}
+
+		public int read(ByteBuffer dst, long position) throws IOException
+		{
+			return file.read(dst, position);
+		}
+
+		public int write(ByteBuffer src, long position) throws IOException
+		{
+			return file.write(src, position);
+		}
+
+		public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException
+		{
+			return file.map(mode, position, size);
+		}
+
+		public FileLock lock(long position, long size, boolean shared) throws IOException
+		{
+			return file.lock(position, size, shared);
+		}
+
+		public FileLock tryLock(long position, long size, boolean shared) throws IOException
+		{
+			return file.tryLock(position, size, shared);
+		}
+
+		protected void implCloseChannel() throws IOException
+		{
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package binarybuddysystem.test;
+
+import static org.junit.Assert.*;
+import binarybuddysystem.Handle;
+import binarybuddysystem.LongMMU;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LongMMUTest
+{
+	private static final long TB = 1L << 40;
+
+	LongMMU testMMU;
+
+	@Before
+	public void setUp()
+	{
+		testMMU = new LongMMU(TB, 4096);
+	}
+
+	/**
+	 * This test checks that a terabyte range starts as one hole and only grows
+	 * a hole per order when it is split down to a single chunk.
+	 */
+	@Test
+	public void AllocTest1()
+	{
+		assertEquals(1, testMMU.getHoles());
+
+		long page = testMMU.allocate(1);
+		assertEquals(Handle.encode(0, 0), page);
+		assertEquals(28, testMMU.getHoles());
+		assertEquals(4096, testMMU.getReserved());
+
+		//Blocks far bigger than an int, placed right after the holes left by the split
+		long big = testMMU.allocate(TB / 2);
+		assertEquals(TB / 2, testMMU.address(big));
+		assertEquals(Handle.NONE, testMMU.allocate(TB / 2));
+		assertEquals(TB / 2 + 4096, testMMU.getReserved());
+	}
+
+	/**
+	 * This test checks that freeing merges everything back into the one hole
+	 * and that handles of blocks that aren't allocated are refused.
+	 */
+	@Test
+	public void DeallocTest1()
+	{
+		long a = testMMU.allocate(4096);
+		long b = testMMU.allocate(8192);
+		long c = testMMU.allocate(3L << 33);
+
+		assertFalse(testMMU.free(Handle.encode(Handle.index(b), 0)));
+		assertTrue(testMMU.free(b));
+		assertFalse(testMMU.free(b));
+		assertTrue(testMMU.free(c));
+		assertTrue(testMMU.free(a));
+
+		assertEquals(1, testMMU.getHoles());
+		assertEquals(0, testMMU.getBlocks());
+		assertEquals(0, testMMU.getReserved());
+		assertEquals(Handle.encode(0, 28), testMMU.allocate(TB));
+	}
+
+	/**
+	 * This test checks the largest range a handle can address: 2^57 chunks are
+	 * taken, one more is refused, and the two halves get different handles.
+	 */
+	@Test
+	public void LimitTest()
+	{
+		try
+		{
+			new LongMMU(1L << 62, 16);
+			fail("2^58 chunks don't fit in a handle");
+		}
+		catch(IllegalArgumentException e)
+		{
+		}
+
+		LongMMU bigMMU = new LongMMU(1L << 62, 32);
+		long low = bigMMU.allocate(1L << 61);
+		long high = bigMMU.allocate(1L << 61);
+		assertTrue(low >= 0 && high >= 0 && low != high);
+		assertEquals(0, bigMMU.address(low));
+		assertEquals(1L << 61, bigMMU.address(high));
+
+		//Freeing the second block leaves the first one allocated
+		assertTrue(bigMMU.free(high));
+		assertFalse(bigMMU.free(high));
+		assertEquals(1L << 61, bigMMU.getReserved());
+		assertTrue(bigMMU.free(low));
+	}
+}
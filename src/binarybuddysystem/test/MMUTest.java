@@ -1,9 +1,19 @@
 package binarybuddysystem.test;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import binarybuddysystem.Handle;
 import binarybuddysystem.MMU;
 import binarybuddysystem.Process;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import com.sun.management.ThreadMXBean;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -223,5 +233,336 @@ public class MMUTest
 		//the MMU merged all of the empty chunks recursively.
 		assertNotEquals(testMMU.allocate(p4.getName(), p4.size()), null);
 	}
-
+	
+	/**
+	 * This test shows that blocks allocated by handle share the MMU with named
+	 * processes, and that a handle can only be freed once.
+	 */
+	@Test
+	public void HandleTest()
+	{
+		long h3 = testMMU.allocate(p3.size());
+		assertEquals(2, Handle.order(h3));
+		assertNotEquals(testMMU.allocate(p5.getName(), p5.size()), null);
+		
+		//Freeing with the wrong size or twice fails
+		assertFalse(testMMU.free(Handle.encode(Handle.index(h3), 1)));
+		assertTrue(testMMU.free(h3));
+		assertFalse(testMMU.free(h3));
+		
+		//Handles can also free named processes, which removes the name
+		int[] r = testMMU.allocate(p2.getName(), p2.size());
+		assertTrue(testMMU.free(Handle.encode(r[0], 1)));
+		assertNull(testMMU.getProcess(p2.getName()));
+		
+		//Everything but p5 is free again
+		assertEquals(Handle.NONE, testMMU.allocate(p4.size()));
+		assertTrue(testMMU.deallocate(p5.getName()));
+		assertEquals(Handle.encode(0, 4), testMMU.allocate(p4.size()));
+	}
+	
+	/**
+	 * This test shows that in arena mode every block is a view of its own part
+	 * of the MMU's memory.
+	 */
+	@Test
+	public void ArenaTest()
+	{
+		MMU arenaMMU = new MMU(1024, 64, true);
+		long a = arenaMMU.allocate(p3.size());
+		long b = arenaMMU.allocate(p0.size());
+		
+		ByteBuffer bufA = arenaMMU.buffer(a);
+		ByteBuffer bufB = arenaMMU.buffer(b);
+		assertTrue(bufA.isDirect());
+		assertEquals(256, bufA.capacity());
+		assertEquals(64, bufB.capacity());
+		
+		//Writes through one view are seen by the next view of the same block only
+		bufA.putInt(0, 42);
+		bufB.putInt(0, 7);
+		assertEquals(42, arenaMMU.buffer(a).getInt(0));
+		assertEquals(7, arenaMMU.buffer(b).getInt(0));
+		
+		assertTrue(arenaMMU.free(a));
+		assertNull(arenaMMU.buffer(a));
+		assertFalse(testMMU.hasArena());
+	}
+	
+	/**
+	 * This test shows that a batch is served in one go, largest blocks first,
+	 * and that freeing a batch merges everything back together.
+	 */
+	@Test
+	public void BatchTest()
+	{
+		int[] sizes = {p0.size(), p1.size(), p2.size(), p3.size(), p5.size(), 2048};
+		long[] handles = testMMU.allocateBatch(sizes);
+		
+		//p5 takes half of the MMU, p3, p2, p1 and p0 fill the other half, 2048 bytes never fit
+		assertEquals(3, Handle.order(handles[4]));
+		assertEquals(2, Handle.order(handles[3]));
+		assertEquals(1, Handle.order(handles[2]));
+		assertEquals(0, Handle.order(handles[0]));
+		assertEquals(0, Handle.order(handles[1]));
+		assertEquals(Handle.NONE, handles[5]);
+		
+		//The two 1 chunk blocks are buddies cut from the same hole
+		assertEquals(Handle.index(handles[0]) ^ 1, Handle.index(handles[1]));
+		assertEquals(Handle.NONE, testMMU.allocate(p0.size()));
+		
+		assertEquals(5, testMMU.freeBatch(handles));
+		assertEquals(0, testMMU.freeBatch(handles));
+		assertNotEquals(testMMU.allocate(p4.getName(), p4.size()), null);
+	}
+	
+	/**
+	 * This test shows that lazy merging leaves freed buddies apart for the next
+	 * allocation of the same size, and still merges them when a bigger block
+	 * is needed.
+	 */
+	@Test
+	public void LazyTest()
+	{
+		testMMU.setLazyThreshold(2);
+		long a = testMMU.allocate(p0.size());
+		long b = testMMU.allocate(p1.size());
+		assertEquals(Handle.index(a) ^ 1, Handle.index(b));
+		
+		//The second free finds its buddy free but leaves it apart
+		assertTrue(testMMU.free(a));
+		assertTrue(testMMU.free(b));
+		assertEquals(1, testMMU.getMergesAvoided());
+		
+		//The same size is served without a split
+		long c = testMMU.allocate(p0.size());
+		assertEquals(1, testMMU.getSplitsAvoided());
+		assertTrue(testMMU.free(c));
+		
+		//The whole memory is only there once the holes are merged
+		assertEquals(Handle.encode(0, 4), testMMU.allocate(p4.size()));
+		assertTrue(testMMU.free(Handle.encode(0, 4)));
+		assertEquals(0, testMMU.coalesce());
+	}
+	
+	/**
+	 * This test shows that holes whose buddies are in use don't count against
+	 * the lazy threshold, so a fragmented MMU still merges lazily.
+	 */
+	@Test
+	public void LazyFragmentedTest()
+	{
+		testMMU.setLazyThreshold(1);
+		long[] chunks = new long[16];
+		for(int i = 0; i < 16; i++)
+			chunks[i] = testMMU.allocate(p0.size());
+		for(int i = 0; i < 10; i += 2)
+			assertTrue(testMMU.free(chunks[i]));
+		assertEquals(5, testMMU.getFreeBlocks(0));
+		assertEquals(0, testMMU.getMergesAvoided());
+		
+		//The first pair is left apart, the second one is merged
+		assertTrue(testMMU.free(chunks[11]));
+		assertTrue(testMMU.free(chunks[10]));
+		assertEquals(1, testMMU.getMergesAvoided());
+		assertTrue(testMMU.free(chunks[13]));
+		assertTrue(testMMU.free(chunks[12]));
+		assertEquals(1, testMMU.getMergesAvoided());
+		assertEquals(7, testMMU.getFreeBlocks(0));
+		assertEquals(1, testMMU.getFreeBlocks(1));
+		
+		//Once the pair is taken the next one is left apart again
+		assertEquals(chunks[10], testMMU.allocate(p0.size()));
+		assertTrue(testMMU.free(chunks[10]));
+		assertEquals(2, testMMU.getMergesAvoided());
+	}
+	
+	/**
+	 * This test shows that the Slots of a big MMU are only created where blocks
+	 * start, and that their pages are kept after the blocks are merged away
+	 * until trim() gives them up.
+	 */
+	@Test
+	public void PagedTest()
+	{
+		MMU bigMMU = new MMU(1 << 30, 64);
+		assertEquals(1, bigMMU.getPagesInUse());
+		
+		//Splitting down to one chunk starts a block at every power of 2
+		long a = bigMMU.allocate(p0.size());
+		assertEquals(Handle.encode(0, 0), a);
+		assertEquals(15, bigMMU.getPagesInUse());
+		
+		//Pages stay after merging, until they are trimmed
+		assertTrue(bigMMU.free(a));
+		assertEquals(15, bigMMU.getPagesInUse());
+		assertEquals(14, bigMMU.trim());
+		assertEquals(1, bigMMU.getPagesInUse());
+		assertEquals(Handle.encode(0, 24), bigMMU.allocate(1 << 30));
+	}
+	
+	/**
+	 * This test shows that allocating and freeing by handle creates nothing on
+	 * the heap once the chunks it uses have been split before. It is skipped on
+	 * a JVM that can't count the bytes a thread allocates.
+	 */
+	@Test
+	public void NoGarbageTest()
+	{
+		Object bean = ManagementFactory.getThreadMXBean();
+		assumeTrue(bean instanceof ThreadMXBean);
+		ThreadMXBean threads = (ThreadMXBean) bean;
+		assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+		long thread = Thread.currentThread().getId();
+		MMU bigMMU = new MMU(1 << 24, 64);
+		
+		//Warm up, so the code is compiled and the pages exist
+		for(int i = 0; i < 20000; i++)
+			assertTrue(bigMMU.free(bigMMU.allocate(64)));
+		
+		long before = threads.getThreadAllocatedBytes(thread);
+		for(int i = 0; i < 1000; i++)
+			bigMMU.free(bigMMU.allocate(64));
+		long allocated = threads.getThreadAllocatedBytes(thread) - before;
+		
+		//Leaves room for the bookkeeping of getThreadAllocatedBytes itself
+		assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+	}
+	
+	/**
+	 * This test checks the fragmentation statistics as blocks are allocated
+	 * and freed.
+	 */
+	@Test
+	public void StatsTest()
+	{
+		assertEquals(1024, testMMU.getLargestFree());
+		assertEquals(0, testMMU.getExternalFragmentation(), 0);
+		
+		long a = testMMU.allocate(p2.size());
+		testMMU.allocate(p3.getName(), p3.size());
+		assertEquals(65 + 129, testMMU.getRequestedBytes());
+		assertEquals(128 + 256, testMMU.getReservedBytes());
+		assertEquals(1 - 194.0 / 384, testMMU.getInternalFragmentation(), 1e-9);
+		
+		//Holes of 128 and 512 bytes are left
+		assertEquals(1, testMMU.getFreeBlocks(1));
+		assertEquals(1, testMMU.getFreeBlocks(3));
+		assertEquals(0, testMMU.getFreeBlocks(2));
+		assertEquals(640, testMMU.getFreeBytes());
+		assertEquals(512, testMMU.getLargestFree());
+		assertEquals(0.2, testMMU.getExternalFragmentation(), 1e-9);
+		
+		assertTrue(testMMU.free(a));
+		assertTrue(testMMU.deallocate(p3.getName()));
+		assertEquals(0, testMMU.getRequestedBytes());
+		assertEquals(0, testMMU.getReservedBytes());
+		assertEquals(1024, testMMU.getFreeBytes());
+		assertEquals(1024, testMMU.getLargestFree());
+	}
+	
+	/**
+	 * This test shows that a block grows into its free buddies and shrinks in
+	 * place, and is only moved, along with its memory, when it has to.
+	 */
+	@Test
+	public void ReallocTest()
+	{
+		MMU arenaMMU = new MMU(1024, 64, true);
+		long a = arenaMMU.allocate(p0.size());
+		arenaMMU.buffer(a).putInt(0, 42);
+		
+		//The holes after the block are its buddies
+		long grown = arenaMMU.reallocate(a, p5.size());
+		assertEquals(Handle.encode(0, 3), grown);
+		assertEquals(512, arenaMMU.getReservedBytes());
+		
+		long shrunk = arenaMMU.reallocate(grown, p2.size());
+		assertEquals(Handle.encode(0, 1), shrunk);
+		assertEquals(1, arenaMMU.getFreeBlocks(1));
+		assertEquals(1, arenaMMU.getFreeBlocks(2));
+		
+		//A block in the way makes it move
+		long b = arenaMMU.allocate(p1.size());
+		assertEquals(2, Handle.index(b));
+		long moved = arenaMMU.reallocate(shrunk, p3.size());
+		assertEquals(Handle.encode(4, 2), moved);
+		assertEquals(42, arenaMMU.buffer(moved).getInt(0));
+		assertNull(arenaMMU.buffer(shrunk));
+		
+		//Nothing changes when it can't fit
+		assertEquals(Handle.NONE, arenaMMU.reallocate(moved, p4.size()));
+		assertEquals(42, arenaMMU.buffer(moved).getInt(0));
+		
+		//Named processes keep their name
+		testMMU.allocate(p0.getName(), p0.size());
+		assertEquals(Handle.encode(0, 2), testMMU.reallocate(Handle.encode(0, 0), 200));
+		assertEquals("Process name: \"Process 0\" | Size: 200 byte(s).", testMMU.getProcess(p0.getName()));
+	}
+	
+	/**
+	 * This test checks that a restored snapshot has the same blocks, processes
+	 * and statistics as the MMU it was taken from.
+	 */
+	@Test
+	public void SnapshotTest() throws IOException
+	{
+		testMMU.allocate(p2.getName(), p2.size());
+		long a = testMMU.allocate(p0.size());
+		testMMU.allocate(p3.getName(), p3.size());
+		long b = testMMU.allocate(p1.size());
+		assertTrue(testMMU.free(a));
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		testMMU.snapshot(out);
+		MMU restored = MMU.restore(new ByteArrayInputStream(out.toByteArray()));
+		
+		assertEquals(testMMU.toString(), restored.toString());
+		assertEquals(testMMU.getProcess(p3.getName()), restored.getProcess(p3.getName()));
+		assertEquals(testMMU.getRequestedBytes(), restored.getRequestedBytes());
+		assertEquals(testMMU.getLargestFree(), restored.getLargestFree());
+		assertEquals(testMMU.getFreeBlocks(0), restored.getFreeBlocks(0));
+		
+		//The restored MMU goes on from there
+		assertEquals(a, restored.allocate(p0.size()));
+		assertTrue(restored.free(b));
+		assertTrue(restored.deallocate(p2.getName()));
+		assertTrue(restored.deallocate(p3.getName()));
+		assertFalse(restored.deallocate(p3.getName()));
+		
+		byte[] bytes = out.toByteArray();
+		bytes[0]++;
+		try
+		{
+			MMU.restore(new ByteArrayInputStream(bytes));
+			fail("Restored a snapshot with a bad header");
+		}
+		catch(IOException e)
+		{
+		}
+	}
+	
+	/**
+	 * This test checks that a process named like the handle blocks doesn't
+	 * clash with them when a snapshot is restored.
+	 */
+	@Test
+	public void SnapshotHandleNameTest() throws IOException
+	{
+		assertNotNull(testMMU.allocate("(handle)", 100));
+		long a = testMMU.allocate(100);
+		long b = testMMU.allocate(100);
+		assertNotEquals(Handle.NONE, b);
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		testMMU.snapshot(out);
+		MMU restored = MMU.restore(new ByteArrayInputStream(out.toByteArray()));
+		
+		assertEquals(testMMU.toString(), restored.toString());
+		assertEquals(testMMU.getProcess("(handle)"), restored.getProcess("(handle)"));
+		assertTrue(restored.free(a));
+		assertTrue(restored.free(b));
+		assertTrue(restored.deallocate("(handle)"));
+		assertEquals(restored.getMemorySize(), restored.getLargestFree());
+	}
 }
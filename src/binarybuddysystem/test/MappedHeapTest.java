@@ -0,0 +1,68 @@
+package binarybuddysystem.test;
+
+import static org.junit.Assert.*;
+import binarybuddysystem.Handle;
+import binarybuddysystem.MappedHeap;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedHeapTest
+{
+	File heapFile;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		heapFile = File.createTempFile("buddy", ".heap");
+		heapFile.delete();
+	}
+
+	@After
+	public void tearDown()
+	{
+		heapFile.delete();
+	}
+
+	/**
+	 * This test shows that allocations and the memory behind them are still
+	 * there after the heap file is closed and opened again.
+	 */
+	@Test
+	public void ReopenTest() throws IOException
+	{
+		MappedHeap heap = new MappedHeap(heapFile, 1024, 64);
+		long a = heap.allocate(129);
+		long b = heap.allocate(64);
+		heap.buffer(a).putLong(0, 1234567890123L);
+		heap.buffer(b).put(63, (byte) 9);
+		heap.close();
+
+		heap = new MappedHeap(heapFile);
+		assertEquals(1024, heap.getMemorySize());
+		assertEquals(64, heap.getChunkSize());
+		assertEquals(1234567890123L, heap.buffer(a).getLong(0));
+		assertEquals(9, heap.buffer(b).get(63));
+
+		//a and b are still allocated, so only 8 chunks fit in one block
+		assertEquals(Handle.NONE, heap.allocate(1024));
+		assertNotEquals(Handle.NONE, heap.allocate(512));
+		assertTrue(heap.free(a));
+		assertFalse(heap.free(a));
+		heap.close();
+	}
+
+	/**
+	 * This test checks that a heap can't be opened with different sizes.
+	 */
+	@Test(expected = IOException.class)
+	public void SizeMismatchTest() throws IOException
+	{
+		new MappedHeap(heapFile, 1024, 64).close();
+		new MappedHeap(heapFile, 2048, 64);
+	}
+}
@@ -0,0 +1,74 @@
+package binarybuddysystem.test;
+
+import static org.junit.Assert.*;
+import binarybuddysystem.Handle;
+import binarybuddysystem.MMU;
+import binarybuddysystem.SlabAllocator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SlabAllocatorTest
+{
+	MMU testMMU;
+	SlabAllocator slabs;
+
+	@Before
+	public void setUp()
+	{
+		testMMU = new MMU(1024, 64);
+		slabs = new SlabAllocator(testMMU, 256);
+	}
+
+	/**
+	 * This test checks that small objects share a slab, each at its own
+	 * address, and that a chunk sized request goes to the MMU.
+	 */
+	@Test
+	public void AllocTest1()
+	{
+		long[] small = new long[16];
+		for(int i = 0; i < small.length; i++)
+		{
+			small[i] = slabs.allocate(16);
+			assertNotEquals(0, small[i] & SlabAllocator.SLAB_BIT);
+			assertEquals(16 * i, slabs.address(small[i]) - slabs.address(small[0]));
+		}
+		assertEquals(1, slabs.getSlabs());
+
+		//The slab is full, so the next one takes another
+		assertNotEquals(Handle.NONE, slabs.allocate(2));
+		assertEquals(2, slabs.getSlabs());
+
+		//48 byte objects get a slab of their own and a full chunk doesn't use one
+		long mid = slabs.allocate(48);
+		long chunk = slabs.allocate(64);
+		assertEquals(3, slabs.getSlabs());
+		assertEquals(0, chunk & SlabAllocator.SLAB_BIT);
+		assertEquals(0, Handle.order(chunk));
+		assertNotEquals(slabs.address(mid), slabs.address(chunk));
+	}
+
+	/**
+	 * This test checks that emptied slabs go back to the MMU and that objects
+	 * can't be freed twice.
+	 */
+	@Test
+	public void DeallocTest1()
+	{
+		long a = slabs.allocate(20);
+		long b = slabs.allocate(30);
+		assertEquals(1, slabs.getSlabs());
+
+		assertTrue(slabs.free(a));
+		assertFalse(slabs.free(a));
+		assertEquals(1, slabs.getSlabs());
+		assertTrue(slabs.free(b));
+		assertEquals(0, slabs.getSlabs());
+		assertFalse(slabs.free(b));
+
+		//Everything merged back together
+		assertEquals(Handle.encode(0, 4), testMMU.allocate(1024));
+		assertEquals(Handle.NONE, slabs.allocate(16));
+	}
+}
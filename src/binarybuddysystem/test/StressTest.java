@@ -0,0 +1,75 @@
+package binarybuddysystem.test;
+
+import static org.junit.Assert.*;
+import binarybuddysystem.producerconsumer.AllocatorDeallocator;
+import binarybuddysystem.producerconsumer.ClientSimulation;
+import binarybuddysystem.producerconsumer.LatencyHistogram;
+
+import org.junit.Test;
+
+public class StressTest
+{
+	/**
+	 * This test shows that percentiles come out within a bucket of the real value.
+	 */
+	@Test
+	public void HistogramTest()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		for(int i = 1; i <= 1000; i++)
+			histogram.record(i * 1000);
+
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000000, histogram.getMax());
+		assertEquals(500500, histogram.getMean(), 0.001);
+		assertEquals(500000, histogram.getPercentile(50), 500000 / 16);
+		assertEquals(990000, histogram.getPercentile(99), 990000 / 16);
+		assertEquals(1000000, histogram.getPercentile(100), 1000000 / 16);
+
+		LatencyHistogram other = new LatencyHistogram();
+		other.record(5);
+		histogram.add(other);
+		assertEquals(1001, histogram.getCount());
+		assertEquals(5, histogram.getPercentile(0));
+	}
+
+	/**
+	 * This test shows that headless mode stops after the number of operations it was given.
+	 */
+	@Test
+	public void HeadlessTest() throws InterruptedException
+	{
+		AllocatorDeallocator workload = AllocatorDeallocator.headless(1024, 64, 1, 1, 10000, 0);
+		workload.await();
+		assertTrue(workload.toString().startsWith("Ran 10000 operations"));
+	}
+
+	/**
+	 * This test shows that many allocators and deallocators share the workload
+	 * without any of them being left asleep when it stops.
+	 */
+	@Test(timeout = 20000)
+	public void ThreadsTest() throws InterruptedException
+	{
+		AllocatorDeallocator workload = AllocatorDeallocator.headless(1024, 64, 4, 3, 20000, 0);
+		workload.await();
+		assertTrue(workload.toString().startsWith("Ran 20000 operations"));
+		assertTrue(workload.toString().contains("Threads: 4 allocators, 3 deallocators"));
+	}
+
+	/**
+	 * This test shows that simulated clients share each kind of allocator and
+	 * all stop at the end of the run.
+	 */
+	@Test(timeout = 20000)
+	public void ClientsTest() throws InterruptedException
+	{
+		for(String kind : new String[] {"mmu", "striped", "lockfree"})
+		{
+			ClientSimulation simulation = new ClientSimulation(kind, 1 << 20, 64, 1024, 100000);
+			String result = simulation.run(100, 200);
+			assertTrue(result, result.trim().startsWith("100 clients"));
+			assertTrue(result, result.contains("failed   0.00%"));
+		}
+	}
+}
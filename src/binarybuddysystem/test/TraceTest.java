@@ -0,0 +1,87 @@
+package binarybuddysystem.test;
+
+import static org.junit.Assert.*;
+import binarybuddysystem.Handle;
+import binarybuddysystem.MMU;
+import binarybuddysystem.TraceRecorder;
+import binarybuddysystem.TraceReplayer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class TraceTest
+{
+	/**
+	 * This test shows that replaying a trace on a fresh MMU of the same size
+	 * leaves it as the recorded one, and that failed requests are replayed too.
+	 */
+	@Test
+	public void ReplayTest() throws IOException
+	{
+		MMU mmu = new MMU(1024, 64);
+		ByteArrayOutputStream trace = new ByteArrayOutputStream();
+		TraceRecorder recorder = new TraceRecorder(mmu, trace);
+
+		long a = mmu.allocate(129);
+		mmu.allocate("Process 0", 32);
+		long b = mmu.allocate(65);
+		assertEquals(Handle.NONE, mmu.allocate(2048));
+		assertTrue(mmu.free(a));
+		mmu.reallocate(b, 300);
+		mmu.allocate("Process 1", 100);
+		assertTrue(mmu.deallocate("Process 0"));
+		recorder.close();
+
+		//Not recorded once the recorder is closed
+		long c = mmu.allocate(64);
+		assertEquals(8, recorder.getRecords());
+
+		MMU replayed = new MMU(1024, 64);
+		TraceReplayer replayer = new TraceReplayer(new ByteArrayInputStream(trace.toByteArray()));
+		assertEquals(8, replayer.getRequests());
+		assertEquals(1024, replayer.getMemorySize());
+		assertEquals(64, replayer.getChunkSize());
+
+		replayer.replay(replayed, 2);
+		assertEquals(1, replayer.getFailures());
+		assertEquals(4, replayer.getCurve().length);
+		assertTrue(replayer.getOpsPerSecond() > 0);
+
+		assertTrue(mmu.free(c));
+		assertEquals(mmu.toString(), replayed.toString());
+	}
+
+	/**
+	 * This test shows that a named Process freed or resized by handle is
+	 * recorded by its name, so the replayed MMU ends up the same.
+	 */
+	@Test
+	public void NamedByHandleTest() throws IOException
+	{
+		MMU mmu = new MMU(1024, 64);
+		ByteArrayOutputStream trace = new ByteArrayOutputStream();
+		TraceRecorder recorder = new TraceRecorder(mmu, trace);
+
+		int[] p = mmu.allocate("P", 100);
+		int[] q = mmu.allocate("Q", 100);
+		assertTrue(mmu.free(Handle.encode(p[0], 1)));
+		assertNotEquals(Handle.NONE, mmu.reallocate(Handle.encode(q[0], 1), 300));
+		int[] r = mmu.allocate("R", 64);
+		assertEquals(1, mmu.freeBatch(new long[] {Handle.encode(r[0], 0)}));
+		recorder.close();
+
+		MMU replayed = new MMU(1024, 64);
+		TraceReplayer replayer = new TraceReplayer(new ByteArrayInputStream(trace.toByteArray()));
+		assertEquals(6, replayer.getRequests());
+		replayer.replay(replayed, 0);
+		assertEquals(0, replayer.getFailures());
+
+		assertNull(replayed.getProcess("P"));
+		assertNull(replayed.getProcess("R"));
+		assertEquals(mmu.getProcess("Q"), replayed.getProcess("Q"));
+		assertEquals(mmu.toString(), replayed.toString());
+	}
+}